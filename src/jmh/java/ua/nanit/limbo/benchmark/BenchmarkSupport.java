@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.LoggerFactory;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Shared state for benchmarks. Server is loaded once per JVM from the default settings
+ * in a temporary directory and never bound to a port
+ */
+final class BenchmarkSupport {
+
+    private static LimboServer server;
+
+    private BenchmarkSupport() {}
+
+    static synchronized LimboServer getServer() throws Exception {
+        if (server == null) {
+            Path root = Files.createTempDirectory("nanolimbo-jmh");
+            LimboServer limbo = new LimboServer();
+            limbo.load(root);
+
+            // Keep benchmark output clean from connect and disconnect messages
+            ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+            server = limbo;
+        }
+        return server;
+    }
+
+    /**
+     * Build length-prefixed frame as the client sends it
+     * @param packetId Id of the packet
+     * @param body Writer of the packet fields
+     * @return Frame in a heap buffer
+     */
+    static ByteBuf frame(int packetId, Consumer<ByteMessage> body) {
+        ByteMessage packet = ByteMessage.create();
+        packet.writeVarInt(packetId);
+        body.accept(packet);
+
+        ByteMessage frame = new ByteMessage(Unpooled.buffer(packet.readableBytes() + 5));
+        frame.writeVarInt(packet.readableBytes());
+        frame.writeBytes(packet);
+        packet.release();
+
+        return frame;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import io.netty.buffer.Unpooled;
+import net.kyori.adventure.nbt.CompoundBinaryTag;
+import org.openjdk.jmh.annotations.*;
+import ua.nanit.limbo.protocol.ByteMessage;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ByteMessageBenchmark {
+
+    private ByteMessage buffer;
+    private CompoundBinaryTag codec;
+    private String text;
+
+    @State(Scope.Thread)
+    public static class VarIntState {
+
+        @Param({"1", "300", "2097151", "-1"})
+        int value;
+
+        ByteMessage encoded;
+
+        @Setup
+        public void setup() {
+            encoded = new ByteMessage(Unpooled.directBuffer(5));
+            encoded.writeVarInt(value);
+        }
+
+        @TearDown
+        public void tearDown() {
+            encoded.release();
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        buffer = new ByteMessage(Unpooled.directBuffer(64 * 1024));
+        codec = BenchmarkSupport.getServer().getDimensionRegistry().getCodec_1_20();
+        text = "{\"text\":\"Welcome to the NanoLimbo server!\",\"color\":\"gold\"}";
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffer.release();
+    }
+
+    @Benchmark
+    public ByteMessage writeVarInt(VarIntState state) {
+        buffer.clear();
+        buffer.writeVarInt(state.value);
+        return buffer;
+    }
+
+    @Benchmark
+    public int readVarInt(VarIntState state) {
+        state.encoded.readerIndex(0);
+        return state.encoded.readVarInt();
+    }
+
+    @Benchmark
+    public ByteMessage writeString() {
+        buffer.clear();
+        buffer.writeString(text);
+        return buffer;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ByteMessage writeNamelessCompoundTag() {
+        buffer.clear();
+        buffer.writeNamelessCompoundTag(codec);
+        return buffer;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Packet rate counter previously used by ChannelTrafficHandler, kept as a baseline for {@link TrafficLimiterBenchmark}
+ */
+final class LegacyPacketBucket {
+
+    private static final double NANOSECONDS_TO_MILLISECONDS = 1.0e-6;
+    private static final int MILLISECONDS_TO_SECONDS = 1000;
+
+    private final double intervalTime;
+    private final double intervalResolution;
+    private final int[] data;
+    private int newestData;
+    private double lastBucketTime;
+    private int sum;
+
+    LegacyPacketBucket(final double intervalTime, final int totalBuckets) {
+        this.intervalTime = intervalTime;
+        this.intervalResolution = intervalTime / totalBuckets;
+        this.data = new int[totalBuckets];
+    }
+
+    public void incrementPackets(final int packets) {
+        double timeMs = System.nanoTime() * NANOSECONDS_TO_MILLISECONDS;
+        double timeDelta = timeMs - this.lastBucketTime;
+
+        if (timeDelta < 0.0) {
+            timeDelta = 0.0;
+        }
+
+        if (timeDelta < this.intervalResolution) {
+            this.data[this.newestData] += packets;
+            this.sum += packets;
+            return;
+        }
+
+        int bucketsToMove = (int)(timeDelta / this.intervalResolution);
+        double nextBucketTime = this.lastBucketTime + bucketsToMove * this.intervalResolution;
+
+        if (bucketsToMove >= this.data.length) {
+            Arrays.fill(this.data, 0);
+            this.data[0] = packets;
+            this.sum = packets;
+            this.newestData = 0;
+            this.lastBucketTime = timeMs;
+            return;
+        }
+
+        for (int i = 1; i < bucketsToMove; ++i) {
+            int index = (this.newestData + i) % this.data.length;
+            this.sum -= this.data[index];
+            this.data[index] = 0;
+        }
+
+        int newestDataIndex = (this.newestData + bucketsToMove) % this.data.length;
+        this.sum += packets - this.data[newestDataIndex];
+        this.data[newestDataIndex] = packets;
+        this.newestData = newestDataIndex;
+        this.lastBucketTime = nextBucketTime;
+    }
+
+    public double getCurrentPacketRate() {
+        return this.sum / (this.intervalTime / MILLISECONDS_TO_SECONDS);
+    }
+}
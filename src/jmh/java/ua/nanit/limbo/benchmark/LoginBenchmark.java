@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import ua.nanit.limbo.connection.ClientChannelInitializer;
+import ua.nanit.limbo.protocol.packets.configuration.PacketFinishConfiguration;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginAcknowledged;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full login of one client through the real pipeline, from handshake to the last join packet.
+ * Client packets are pre-built and fed as a single read
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoginBenchmark {
+
+    // Versions up to 1.7.6 receive join packets with a delay, so they aren't measured here
+    @Param({"V1_8", "V1_12_2", "V1_16_4", "V1_19_4", "V1_20_3", "V1_21"})
+    private String version;
+
+    private LimboServer server;
+    private ByteBuf inbound;
+
+    @Setup
+    public void setup() throws Exception {
+        server = BenchmarkSupport.getServer();
+
+        Version clientVersion = Version.valueOf(version);
+        inbound = Unpooled.directBuffer();
+
+        append(BenchmarkSupport.frame(0x00, msg -> {
+            msg.writeVarInt(clientVersion.getProtocolNumber());
+            msg.writeString("localhost");
+            msg.writeShort(25565);
+            msg.writeVarInt(2); // Login state
+        }));
+
+        append(BenchmarkSupport.frame(0x00, msg -> msg.writeString("Benchmark")));
+
+        if (clientVersion.moreOrEqual(Version.V1_20_2)) {
+            append(BenchmarkSupport.frame(ua.nanit.limbo.protocol.registry.State.LOGIN.serverBound.getRegistry(clientVersion)
+                    .getPacketId(PacketLoginAcknowledged.class), msg -> {}));
+            append(BenchmarkSupport.frame(ua.nanit.limbo.protocol.registry.State.CONFIGURATION.serverBound.getRegistry(clientVersion)
+                    .getPacketId(PacketFinishConfiguration.class), msg -> {}));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        inbound.release();
+    }
+
+    @Benchmark
+    public int login() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ClientChannelInitializer(server));
+        channel.writeInbound(inbound.retainedDuplicate());
+
+        int bytes = 0;
+        ByteBuf buf;
+
+        while ((buf = channel.readOutbound()) != null) {
+            bytes += buf.readableBytes();
+            buf.release();
+        }
+
+        channel.finishAndReleaseAll();
+        return bytes;
+    }
+
+    private void append(ByteBuf frame) {
+        inbound.writeBytes(frame);
+        frame.release();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ua.nanit.limbo.connection.PacketSnapshots;
+import ua.nanit.limbo.protocol.PacketOut;
+import ua.nanit.limbo.protocol.PacketSnapshot;
+import ua.nanit.limbo.protocol.SnapshotArena;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding one snapshot for all versions, as done on startup
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PacketSnapshotBenchmark {
+
+    @Param({"JOIN_GAME", "REGISTRY_DATA", "PLAYER_INFO", "LOGIN_SUCCESS"})
+    private String packet;
+
+    private PacketOut wrapped;
+
+    @Setup
+    public void setup() throws Exception {
+        PacketSnapshots snapshots = BenchmarkSupport.getServer().getSnapshots();
+
+        switch (packet) {
+            case "JOIN_GAME":
+                wrapped = snapshots.getJoinGame().getWrappedPacket();
+                break;
+            case "REGISTRY_DATA":
+                wrapped = snapshots.getRegistryData().getWrappedPacket();
+                break;
+            case "PLAYER_INFO":
+                wrapped = snapshots.getPlayerInfo().getWrappedPacket();
+                break;
+            case "LOGIN_SUCCESS":
+                wrapped = snapshots.getLoginSuccess().getWrappedPacket();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown packet " + packet);
+        }
+    }
+
+    @Benchmark
+    public PacketSnapshot encode() {
+        return PacketSnapshot.of(wrapped, new SnapshotArena());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import ua.nanit.limbo.connection.pipeline.PacketDecoder;
+import ua.nanit.limbo.connection.pipeline.PacketEncoder;
+import ua.nanit.limbo.connection.pipeline.VarIntFrameDecoder;
+import ua.nanit.limbo.connection.pipeline.VarIntLengthEncoder;
+import ua.nanit.limbo.metrics.LimboMetrics;
+import ua.nanit.limbo.protocol.packets.play.PacketKeepAlive;
+import ua.nanit.limbo.protocol.registry.Version;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound packet and length encoders and inbound frame and packet decoders.
+ * Run with the gc profiler to see allocations per frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PipelineBenchmark {
+
+    private static final int FRAMES_PER_READ = 64;
+
+    @Param({"V1_8", "V1_16_4", "V1_21"})
+    private String version;
+
+    private EmbeddedChannel encoderChannel;
+    private EmbeddedChannel decoderChannel;
+    private EmbeddedChannel packetChannel;
+    private PacketKeepAlive keepAlive;
+    private ByteBuf inbound;
+    private ByteBuf keepAlives;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.getServer();
+
+        PacketEncoder encoder = new PacketEncoder(new LimboMetrics());
+        encoder.updateVersion(Version.valueOf(version));
+        encoder.updateState(ua.nanit.limbo.protocol.registry.State.PLAY);
+
+        PacketDecoder decoder = new PacketDecoder(new LimboMetrics());
+        decoder.updateVersion(Version.valueOf(version));
+        decoder.updateState(ua.nanit.limbo.protocol.registry.State.PLAY);
+
+        encoderChannel = new EmbeddedChannel(new VarIntLengthEncoder(), encoder);
+        decoderChannel = new EmbeddedChannel(new VarIntFrameDecoder());
+        packetChannel = new EmbeddedChannel(new VarIntFrameDecoder(), decoder);
+
+        keepAlive = new PacketKeepAlive();
+        keepAlive.setId(System.nanoTime());
+
+        inbound = Unpooled.directBuffer();
+
+        for (int i = 0; i < FRAMES_PER_READ; i++) {
+            ByteBuf frame = BenchmarkSupport.frame(0x12, msg -> msg.writeLong(System.nanoTime()));
+            inbound.writeBytes(frame);
+            frame.release();
+        }
+
+        // Keepalive answers as a client in the world sends them, in a pooled buffer like a socket read
+        int keepAliveId = ua.nanit.limbo.protocol.registry.State.PLAY.serverBound
+                .getRegistry(Version.valueOf(version)).getPacketId(PacketKeepAlive.class);
+        keepAlives = PooledByteBufAllocator.DEFAULT.directBuffer();
+
+        for (int i = 0; i < FRAMES_PER_READ; i++) {
+            ByteBuf frame = BenchmarkSupport.frame(keepAliveId, msg -> keepAlive.encode(msg, Version.valueOf(version)));
+            keepAlives.writeBytes(frame);
+            frame.release();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoderChannel.finishAndReleaseAll();
+        decoderChannel.finishAndReleaseAll();
+        packetChannel.finishAndReleaseAll();
+        inbound.release();
+        keepAlives.release();
+    }
+
+    @Benchmark
+    public int encodePacket() {
+        encoderChannel.writeOutbound(keepAlive);
+        return drainOutbound();
+    }
+
+    @Benchmark
+    public int encodeSnapshot() {
+        encoderChannel.writeOutbound(BenchmarkSupport.getServer().getSnapshots().getPlayerAbilities());
+        return drainOutbound();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_READ)
+    public int decodeFrames() {
+        decoderChannel.writeInbound(inbound.retainedDuplicate());
+
+        int frames = 0;
+        ByteBuf frame;
+
+        while ((frame = decoderChannel.readInbound()) != null) {
+            frame.release();
+            frames++;
+        }
+
+        return frames;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_READ)
+    public int decodeKeepAlives() {
+        packetChannel.writeInbound(keepAlives.retainedDuplicate());
+
+        int packets = 0;
+
+        while (packetChannel.readInbound() != null) {
+            packets++;
+        }
+
+        return packets;
+    }
+
+    private int drainOutbound() {
+        int bytes = 0;
+        ByteBuf buf;
+
+        while ((buf = encoderChannel.readOutbound()) != null) {
+            bytes += buf.readableBytes();
+            buf.release();
+        }
+
+        return bytes;
+    }
+}
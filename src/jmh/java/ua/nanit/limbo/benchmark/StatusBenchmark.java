@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import ua.nanit.limbo.connection.ClientChannelInitializer;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server list ping through the real pipeline: handshake, status request and ping fed as a single read
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StatusBenchmark {
+
+    private LimboServer server;
+    private ByteBuf inbound;
+
+    @Setup
+    public void setup() throws Exception {
+        server = BenchmarkSupport.getServer();
+        inbound = Unpooled.directBuffer();
+
+        append(BenchmarkSupport.frame(0x00, msg -> {
+            msg.writeVarInt(Version.getMax().getProtocolNumber());
+            msg.writeString("localhost");
+            msg.writeShort(25565);
+            msg.writeVarInt(1); // Status state
+        }));
+
+        append(BenchmarkSupport.frame(0x00, msg -> {}));
+        append(BenchmarkSupport.frame(0x01, msg -> msg.writeLong(System.nanoTime())));
+    }
+
+    @TearDown
+    public void tearDown() {
+        inbound.release();
+    }
+
+    @Benchmark
+    public int ping() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ClientChannelInitializer(server));
+        channel.writeInbound(inbound.retainedDuplicate());
+
+        int bytes = 0;
+        ByteBuf buf;
+
+        while ((buf = channel.readOutbound()) != null) {
+            bytes += buf.readableBytes();
+            buf.release();
+        }
+
+        channel.finishAndReleaseAll();
+        return bytes;
+    }
+
+    private void append(ByteBuf frame) {
+        inbound.writeBytes(frame);
+        frame.release();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.local.LocalChannel;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.openjdk.jmh.annotations.*;
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.connection.TimeoutScheduler;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Read timeouts of idle channels on one event loop: ReadTimeoutHandler with a scheduled task
+ * per channel against the shared timing wheel. Timer tasks are recorded by the event loop
+ * instead of running in real time, so a whole read timeout period can be run on demand
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimeoutBenchmark {
+
+    // Timing wheel ticks every 100 ms
+    private static final long WHEEL_TICK_MILLIS = 100;
+    private static final Object MESSAGE = new Object();
+    private static final ChannelHandler SINK = new Sink();
+
+    @Param({"1000", "10000", "100000"})
+    private int channels;
+
+    @Param({"READ_TIMEOUT_HANDLER", "WHEEL"})
+    private Timer timer;
+
+    private RecordingEventLoop loop;
+    private LocalChannel[] channelArray;
+    private TimeoutScheduler scheduler;
+    private long readTimeout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        LimboConfig config = loadConfig();
+        readTimeout = config.getReadTimeout();
+        scheduler = new TimeoutScheduler(config);
+        loop = new RecordingEventLoop();
+        channelArray = new LocalChannel[channels];
+
+        for (int i = 0; i < channels; i++) {
+            channelArray[i] = new LocalChannel();
+            loop.register(channelArray[i]).sync();
+            channelArray[i].pipeline().addLast("sink", SINK);
+        }
+
+        inLoop(this::registerAll);
+    }
+
+    @Setup(Level.Iteration)
+    public void touch() throws Exception {
+        // Real time passes between iterations, so every channel reads to stay within the timeout
+        inLoop(this::readAll);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        inLoop(() -> {
+            for (LocalChannel channel : channelArray) {
+                channel.close();
+            }
+        });
+        loop.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    public void cancelAndRegister() throws Exception {
+        inLoop(() -> {
+            cancelAll();
+            registerAll();
+        });
+    }
+
+    @Benchmark
+    public void read() throws Exception {
+        inLoop(this::readAll);
+    }
+
+    /**
+     * Timer work done for all channels during one read timeout period
+     */
+    @Benchmark
+    public void tick() throws Exception {
+        inLoop(() -> {
+            if (timer == Timer.WHEEL) {
+                for (long i = 0; i < readTimeout / WHEEL_TICK_MILLIS; i++) {
+                    loop.periodic.run();
+                }
+            } else {
+                loop.runScheduled();
+            }
+        });
+    }
+
+    private void registerAll() {
+        for (LocalChannel channel : channelArray) {
+            channel.pipeline().addFirst("timeout", timer == Timer.WHEEL
+                    ? scheduler.getHandler()
+                    : new ReadTimeoutHandler(readTimeout, TimeUnit.MILLISECONDS));
+            channel.pipeline().fireChannelActive();
+        }
+    }
+
+    private void cancelAll() {
+        for (LocalChannel channel : channelArray) {
+            channel.pipeline().remove("timeout");
+        }
+
+        loop.scheduled.clear();
+    }
+
+    private void readAll() {
+        for (LocalChannel channel : channelArray) {
+            channel.pipeline().fireChannelRead(MESSAGE);
+            channel.pipeline().fireChannelReadComplete();
+        }
+    }
+
+    private void inLoop(Runnable task) throws Exception {
+        loop.submit(task).sync();
+    }
+
+    /**
+     * Default settings with disabled login timeout, since benchmark channels never log in
+     */
+    private static LimboConfig loadConfig() throws Exception {
+        Path root = Files.createTempDirectory("nanolimbo-jmh");
+        Path settings = root.resolve("settings.yml");
+
+        try (InputStream stream = LimboConfig.class.getResourceAsStream("/settings.yml")) {
+            Files.copy(stream, settings);
+        }
+
+        List<String> lines = Files.readAllLines(settings, StandardCharsets.UTF_8).stream()
+                .map(line -> line.startsWith("loginTimeout:") ? "loginTimeout: 0" : line)
+                .collect(Collectors.toList());
+        Files.write(settings, lines, StandardCharsets.UTF_8);
+
+        LimboConfig config = new LimboConfig(root);
+        config.load();
+        return config;
+    }
+
+    public enum Timer {
+        READ_TIMEOUT_HANDLER,
+        WHEEL
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Sink extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // Messages end here, so they don't reach the pipeline tail
+        }
+    }
+
+    /**
+     * Event loop which remembers timer tasks and defers their real execution far into the future.
+     * Tasks are still put into the loop's queue, so its cost is measured
+     */
+    private static final class RecordingEventLoop extends DefaultEventLoop {
+
+        private static final long DEFERRAL_NANOS = TimeUnit.DAYS.toNanos(1);
+
+        private final Map<Runnable, ScheduledFuture<?>> scheduled = new HashMap<>();
+        private Runnable periodic;
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            ScheduledFuture<?> future = super.schedule(command, unit.toNanos(delay) + DEFERRAL_NANOS, TimeUnit.NANOSECONDS);
+            scheduled.put(command, future);
+            return future;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            periodic = command;
+            return super.scheduleAtFixedRate(command, DEFERRAL_NANOS, DEFERRAL_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Run every recorded task once, as if its time has come. Tasks reschedule themselves
+         */
+        void runScheduled() {
+            List<Map.Entry<Runnable, ScheduledFuture<?>>> tasks = new ArrayList<>(scheduled.entrySet());
+            scheduled.clear();
+
+            for (Map.Entry<Runnable, ScheduledFuture<?>> task : tasks) {
+                task.getValue().cancel(false);
+                task.getKey().run();
+            }
+        }
+    }
+}
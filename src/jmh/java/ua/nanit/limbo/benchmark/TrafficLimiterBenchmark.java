@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ua.nanit.limbo.connection.pipeline.ChannelTrafficHandler;
+import ua.nanit.limbo.connection.pipeline.TrafficLimits;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-packet cost of the traffic limiter compared with the old packet rate counter.
+ * Limits are high enough to never be exceeded
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrafficLimiterBenchmark {
+
+    private static final double MAX_PACKET_RATE = 1.0e9;
+
+    private LegacyPacketBucket legacyBucket;
+    private TrafficLimits limits;
+    private ChannelTrafficHandler handler;
+
+    @Setup
+    public void setup() {
+        legacyBucket = new LegacyPacketBucket(7.0 * 1000.0, 150);
+        limits = new TrafficLimits(8192, 7.0, MAX_PACKET_RATE, MAX_PACKET_RATE, -1, -1, TrafficLimits.Action.CLOSE);
+        handler = new ChannelTrafficHandler(limits);
+    }
+
+    @Benchmark
+    public boolean legacyPacketBucket() {
+        legacyBucket.incrementPackets(1);
+        return legacyBucket.getCurrentPacketRate() > MAX_PACKET_RATE;
+    }
+
+    @Benchmark
+    public boolean tokenBucket() {
+        return handler.tryAcquire(64);
+    }
+
+    /**
+     * Clock tick runs once per few milliseconds on the server, measured here separately
+     */
+    @Benchmark
+    public void clockTick(Blackhole blackhole) {
+        limits.tick();
+        blackhole.consume(limits.now());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.loadtest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import ua.nanit.limbo.connection.pipeline.PacketCompressor;
+import ua.nanit.limbo.connection.pipeline.PacketDecompressor;
+import ua.nanit.limbo.connection.pipeline.VarIntFrameDecoder;
+import ua.nanit.limbo.connection.pipeline.VarIntLengthEncoder;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.protocol.packets.PacketHandshake;
+import ua.nanit.limbo.protocol.packets.configuration.PacketFinishConfiguration;
+import ua.nanit.limbo.protocol.packets.login.PacketDisconnect;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginAcknowledged;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginPluginRequest;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginStart;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginSuccess;
+import ua.nanit.limbo.protocol.packets.login.PacketSetCompression;
+import ua.nanit.limbo.protocol.packets.play.PacketKeepAlive;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.util.UuidUtil;
+
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+/**
+ * Headless client which joins the server the same way as a vanilla client:
+ * handshake, login, configuration for 1.20.2+ and play. Packet ids are resolved
+ * through the server's {@link State} mappings, so bot follows the same protocol table.
+ * After join, bot only answers keepalives
+ */
+final class Bot extends ChannelInboundHandlerAdapter {
+
+    private final Version version;
+    private final String username;
+    private final String host;
+    private final int port;
+    private final LoadStats stats;
+    private final long connectStart;
+
+    private State state = State.LOGIN;
+    private boolean joined;
+    private boolean failed;
+    private long receivedBytes;
+
+    Bot(int index, Version version, String host, int port, LoadStats stats) {
+        this.version = version;
+        this.username = "bot" + index;
+        this.host = host;
+        this.port = port;
+        this.stats = stats;
+        this.connectStart = System.nanoTime();
+    }
+
+    void initPipeline(ChannelPipeline pipeline) {
+        pipeline.addLast("counter", new TrafficCounter());
+        pipeline.addLast("frame_decoder", new VarIntFrameDecoder());
+        pipeline.addLast("frame_encoder", new VarIntLengthEncoder());
+        pipeline.addLast("handler", this);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        write(ctx, State.HANDSHAKING, PacketHandshake.class, msg -> {
+            msg.writeVarInt(version.getProtocolNumber());
+            msg.writeString(host);
+            msg.writeShort(port);
+            msg.writeVarInt(2); // Login state
+        });
+
+        write(ctx, State.LOGIN, PacketLoginStart.class, this::writeLoginStart);
+        ctx.flush();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (joined) {
+            stats.online.decrementAndGet();
+            stats.disconnected.incrementAndGet();
+        } else {
+            fail(ctx, "Connection closed during " + state);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        fail(ctx, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object obj) {
+        ByteBuf buf = (ByteBuf) obj;
+
+        try {
+            ByteMessage msg = new ByteMessage(buf);
+            int packetId = msg.readVarInt();
+
+            switch (state) {
+                case LOGIN:
+                    handleLogin(ctx, packetId, msg);
+                    break;
+                case CONFIGURATION:
+                    handleConfiguration(ctx, packetId, msg);
+                    break;
+                case PLAY:
+                    handlePlay(ctx, packetId, msg);
+                    break;
+            }
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void handleLogin(ChannelHandlerContext ctx, int packetId, ByteMessage msg) {
+        if (packetId == clientBoundId(PacketSetCompression.class)) {
+            int threshold = msg.readVarInt();
+            ctx.pipeline().addBefore("handler", "decompress", new PacketDecompressor(threshold));
+            ctx.pipeline().addBefore("handler", "compress",
+                    new PacketCompressor(threshold, Deflater.DEFAULT_COMPRESSION));
+        } else if (packetId == clientBoundId(PacketLoginSuccess.class)) {
+            if (version.moreOrEqual(Version.V1_20_2)) {
+                write(ctx, State.LOGIN, PacketLoginAcknowledged.class, empty -> {});
+                ctx.flush();
+                state = State.CONFIGURATION;
+            } else {
+                state = State.PLAY;
+            }
+        } else if (packetId == clientBoundId(PacketDisconnect.class)) {
+            fail(ctx, "Disconnected on login: " + msg.readString());
+        } else if (packetId == clientBoundId(PacketLoginPluginRequest.class)) {
+            fail(ctx, "Server requires modern info forwarding");
+        }
+    }
+
+    private void handleConfiguration(ChannelHandlerContext ctx, int packetId, ByteMessage msg) {
+        if (packetId == clientBoundId(PacketFinishConfiguration.class)) {
+            write(ctx, State.CONFIGURATION, PacketFinishConfiguration.class, empty -> {});
+            ctx.flush();
+            state = State.PLAY;
+        } else if (packetId == clientBoundId(PacketKeepAlive.class)) {
+            answerKeepAlive(ctx, msg);
+        } else if (packetId == clientBoundId(PacketDisconnect.class)) {
+            fail(ctx, "Disconnected on configuration");
+        }
+    }
+
+    private void handlePlay(ChannelHandlerContext ctx, int packetId, ByteMessage msg) {
+        // Server sends the first keepalive right after the join packets
+        if (packetId == clientBoundId(PacketKeepAlive.class)) {
+            if (!joined) {
+                joined = true;
+                stats.connecting.decrementAndGet();
+                stats.online.incrementAndGet();
+                stats.recordJoin(System.nanoTime() - connectStart, receivedBytes);
+            }
+
+            answerKeepAlive(ctx, msg);
+        }
+    }
+
+    private void answerKeepAlive(ChannelHandlerContext ctx, ByteMessage msg) {
+        PacketKeepAlive keepAlive = new PacketKeepAlive();
+        keepAlive.decode(msg, version);
+
+        write(ctx, state, PacketKeepAlive.class, out -> keepAlive.encode(out, version));
+        ctx.flush();
+        stats.keepAlives.increment();
+    }
+
+    private void writeLoginStart(ByteMessage msg) {
+        msg.writeString(username);
+
+        if (version.moreOrEqual(Version.V1_20_2)) {
+            msg.writeUuid(UuidUtil.getOfflineModeUuid(username));
+        } else if (version.moreOrEqual(Version.V1_19_3)) {
+            msg.writeBoolean(true);
+            msg.writeUuid(UuidUtil.getOfflineModeUuid(username));
+        } else if (version.moreOrEqual(Version.V1_19_1)) {
+            msg.writeBoolean(false); // No signature data
+            msg.writeBoolean(false); // No uuid
+        } else if (version.moreOrEqual(Version.V1_19)) {
+            msg.writeBoolean(false); // No signature data
+        }
+    }
+
+    private void write(ChannelHandlerContext ctx, State state, Class<?> packetClass, Consumer<ByteMessage> body) {
+        ByteBuf buf = ctx.alloc().buffer();
+        ByteMessage msg = new ByteMessage(buf);
+
+        msg.writeVarInt(state.serverBound.getRegistry(version).getPacketId(packetClass));
+        body.accept(msg);
+
+        ctx.write(buf);
+    }
+
+    private int clientBoundId(Class<?> packetClass) {
+        State.PacketRegistry registry = state.clientBound.getRegistry(version);
+        return registry != null ? registry.getPacketId(packetClass) : -1;
+    }
+
+    void connectFailed(Throwable cause) {
+        recordFailure("Cannot connect: " + cause.getMessage());
+    }
+
+    private void fail(ChannelHandlerContext ctx, String reason) {
+        recordFailure(reason);
+        ctx.close();
+    }
+
+    private void recordFailure(String reason) {
+        if (!joined && !failed) {
+            failed = true;
+            stats.connecting.decrementAndGet();
+            stats.recordFailure(reason);
+        }
+    }
+
+    /**
+     * Counts bytes on the wire, before frame decoding and decompression
+     */
+    private final class TrafficCounter extends ChannelDuplexHandler {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf) {
+                int bytes = ((ByteBuf) msg).readableBytes();
+                receivedBytes += bytes;
+                stats.bytesIn.add(bytes);
+            }
+
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof ByteBuf) {
+                stats.bytesOut.add(((ByteBuf) msg).readableBytes());
+            }
+
+            ctx.write(msg, promise);
+        }
+    }
+}
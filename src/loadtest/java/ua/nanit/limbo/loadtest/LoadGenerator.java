@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import ua.nanit.limbo.server.Transport;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator which connects a swarm of headless bots to the limbo server over loopback
+ * and reports join latency, join rate, traffic per join and server memory and CPU usage.
+ * Run with --help to see options
+ */
+public final class LoadGenerator {
+
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final long IDLE_REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final LoadOptions options;
+    private final LoadStats stats = new LoadStats();
+
+    private LoadGenerator(LoadOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(LoadOptions.parse(args)).run();
+    }
+
+    private void run() throws Exception {
+        Transport transport = options.getTransport().resolve();
+        EventLoopGroup group = transport.newEventLoopGroup(options.getThreads());
+        Class<? extends Channel> channelClass = transport.getChannelClass();
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(channelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .remoteAddress(options.getHost(), options.getPort());
+
+        long rssBefore = LoadStats.readRss(options.getServerPid());
+        long cpuBefore = LoadStats.readCpuTime(options.getServerPid());
+
+        System.out.printf("Connecting %d bots to %s:%d at %d/s, versions %s, transport %s%n",
+                options.getBots(), options.getHost(), options.getPort(), options.getConnectRate(),
+                options.getVersions(), transport.getName());
+
+        try {
+            connectAll(bootstrap);
+            awaitJoins();
+
+            long rssJoined = LoadStats.readRss(options.getServerPid());
+            long cpuJoined = LoadStats.readCpuTime(options.getServerPid());
+            printReport(rssBefore, rssJoined);
+            printCpu(cpuBefore, cpuJoined);
+
+            if (options.getIdleSeconds() > 0) {
+                idle();
+                System.out.println();
+                System.out.println("=== After idle ===");
+                printMemory(rssBefore, LoadStats.readRss(options.getServerPid()));
+                System.out.printf("Online: %d, disconnected: %d, keepalives answered: %d%n",
+                        stats.online.get(), stats.disconnected.get(), stats.keepAlives.sum());
+            }
+        } finally {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    private void connectAll(Bootstrap bootstrap) {
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.getConnectRate());
+        long next = System.nanoTime();
+        long nextProgress = next + TimeUnit.SECONDS.toNanos(1);
+
+        for (int i = 0; i < options.getBots(); i++) {
+            long now;
+
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+            }
+
+            next += interval;
+
+            if (now >= nextProgress) {
+                printProgress();
+                nextProgress = now + TimeUnit.SECONDS.toNanos(1);
+            }
+
+            connect(bootstrap, i);
+        }
+    }
+
+    private void connect(Bootstrap bootstrap, int index) {
+        Bot bot = new Bot(index, options.nextVersion(), options.getHost(), options.getPort(), stats);
+        stats.connecting.incrementAndGet();
+
+        Bootstrap botBootstrap = bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) {
+                bot.initPipeline(channel.pipeline());
+            }
+        });
+
+        InetSocketAddress source = options.sourceAddress(index);
+        ChannelFuture future = source != null
+                ? botBootstrap.connect(new InetSocketAddress(options.getHost(), options.getPort()), source)
+                : botBootstrap.connect();
+
+        future.addListener(result -> {
+            if (!result.isSuccess()) {
+                bot.connectFailed(result.cause());
+            }
+        });
+    }
+
+    private void awaitJoins() throws InterruptedException {
+        int lastDone = -1;
+        long lastChange = System.nanoTime();
+
+        while (true) {
+            int done = stats.joined.get() + stats.failed.get();
+
+            if (done >= options.getBots()) break;
+
+            long now = System.nanoTime();
+
+            if (done != lastDone) {
+                lastDone = done;
+                lastChange = now;
+            } else if (now - lastChange > STALL_TIMEOUT) {
+                System.out.printf("No progress for %d seconds, %d bots still joining%n",
+                        TimeUnit.NANOSECONDS.toSeconds(STALL_TIMEOUT), options.getBots() - done);
+                break;
+            }
+
+            Thread.sleep(1000);
+            printProgress();
+        }
+    }
+
+    private void idle() throws InterruptedException {
+        System.out.printf("Idling for %d seconds%n", options.getIdleSeconds());
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.getIdleSeconds());
+        long nextReport = System.nanoTime() + IDLE_REPORT_INTERVAL;
+
+        while (System.nanoTime() < end) {
+            Thread.sleep(1000);
+
+            if (System.nanoTime() >= nextReport) {
+                nextReport += IDLE_REPORT_INTERVAL;
+                System.out.printf("Online: %d, disconnected: %d, keepalives answered: %d, server RSS: %s%n",
+                        stats.online.get(), stats.disconnected.get(), stats.keepAlives.sum(),
+                        formatKb(LoadStats.readRss(options.getServerPid())));
+            }
+        }
+    }
+
+    private void printProgress() {
+        System.out.printf("Joining: %d, joined: %d, failed: %d, online: %d%n",
+                stats.connecting.get(), stats.joined.get(), stats.failed.get(), stats.online.get());
+    }
+
+    private void printReport(long rssBefore, long rssJoined) {
+        double[] latency = stats.getLatencyPercentiles();
+
+        System.out.println();
+        System.out.println("=== Join results ===");
+        System.out.printf("Bots: %d, joined: %d, failed: %d%n",
+                options.getBots(), stats.joined.get(), stats.failed.get());
+        System.out.printf("Join latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                latency[0], latency[1], latency[2], latency[3], latency[4]);
+        System.out.printf("Joins per second: %.1f%n", stats.getJoinsPerSecond());
+        System.out.printf("Bytes per join (server to client, on the wire): %.0f%n", stats.getBytesPerJoin());
+        System.out.printf("Total traffic: %d bytes in, %d bytes out%n", stats.bytesIn.sum(), stats.bytesOut.sum());
+        printMemory(rssBefore, rssJoined);
+
+        for (Map.Entry<String, LongAdder> failure : stats.failures.entrySet()) {
+            System.out.printf("Failure '%s': %d%n", failure.getKey(), failure.getValue().sum());
+        }
+    }
+
+    private void printMemory(long rssBefore, long rssNow) {
+        if (rssBefore < 0 || rssNow < 0) {
+            System.out.println("Server RSS: unknown (use --server-pid)");
+            return;
+        }
+
+        int online = stats.online.get();
+        System.out.printf("Server RSS: %s before, %s now, %s per online bot%n",
+                formatKb(rssBefore), formatKb(rssNow),
+                online > 0 ? String.format("%.1f KB", (double) (rssNow - rssBefore) / online) : "-");
+    }
+
+    private void printCpu(long cpuBefore, long cpuNow) {
+        if (cpuBefore < 0 || cpuNow < 0) {
+            System.out.println("Server CPU time: unknown (use --server-pid)");
+            return;
+        }
+
+        int joined = stats.joined.get();
+        long cpu = cpuNow - cpuBefore;
+        System.out.printf("Server CPU time during joins: %d ms, %s per joined bot%n", cpu,
+                joined > 0 ? String.format("%.3f ms", (double) cpu / joined) : "-");
+    }
+
+    private static String formatKb(long kb) {
+        return kb < 0 ? "unknown" : String.format("%.1f MB", kb / 1024.0);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.loadtest;
+
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.Transport;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load generator options parsed from command line arguments
+ */
+final class LoadOptions {
+
+    private String host = "127.0.0.1";
+    private int port = 25565;
+    private int bots = 1000;
+    private int connectRate = 500;
+    private long idleSeconds = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int serverPid = -1;
+    private int sourceAddresses = 1;
+    private Transport transport = Transport.AUTO;
+    private final List<Version> versions = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+    private int totalWeight;
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (arg.equals("--help")) {
+                printUsage();
+                System.exit(0);
+            }
+
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+
+            String value = args[++i];
+
+            switch (arg) {
+                case "--host":
+                    options.host = value;
+                    break;
+                case "--port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "--bots":
+                    options.bots = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    options.connectRate = Integer.parseInt(value);
+                    break;
+                case "--idle":
+                    options.idleSeconds = Long.parseLong(value);
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "--server-pid":
+                    options.serverPid = Integer.parseInt(value);
+                    break;
+                case "--source-addresses":
+                    options.sourceAddresses = Integer.parseInt(value);
+                    break;
+                case "--transport":
+                    options.transport = Transport.of(value);
+                    break;
+                case "--versions":
+                    options.parseVersions(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (options.versions.isEmpty()) {
+            options.addVersion(Version.getMax(), 1);
+        }
+
+        return options;
+    }
+
+    static void printUsage() {
+        System.out.println("Options:");
+        System.out.println("  --host <host>              Server host (default 127.0.0.1)");
+        System.out.println("  --port <port>              Server port (default 25565)");
+        System.out.println("  --bots <count>             Number of bots to connect (default 1000)");
+        System.out.println("  --rate <count>             New connections per second (default 500)");
+        System.out.println("  --versions <mix>           Versions mix with weights, e.g. 1.8:1,1.20.3:2,1.21:5 (default latest)");
+        System.out.println("  --idle <seconds>           Keep bots online after join, answering keepalives (default 0)");
+        System.out.println("  --threads <count>          Client event loop threads (default CPU count)");
+        System.out.println("  --server-pid <pid>         Server process to report RSS from /proc");
+        System.out.println("  --source-addresses <count> Spread bots over 127.0.0.1..N to avoid ephemeral ports exhaustion");
+        System.out.println("  --transport <type>         Client transport: auto, io_uring, epoll or nio (default auto)");
+    }
+
+    private void parseVersions(String value) {
+        for (String entry : value.split(",")) {
+            String[] parts = entry.trim().split(":");
+            String name = parts[0].trim();
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+
+            if (!name.startsWith("V")) {
+                name = "V" + name.replace('.', '_');
+            }
+
+            Version version = Version.valueOf(name);
+
+            if (!version.isSupported()) {
+                throw new IllegalArgumentException("Version " + version + " isn't supported by the server");
+            }
+
+            addVersion(version, weight);
+        }
+    }
+
+    private void addVersion(Version version, int weight) {
+        versions.add(version);
+        weights.add(weight);
+        totalWeight += weight;
+    }
+
+    Version nextVersion() {
+        int value = ThreadLocalRandom.current().nextInt(totalWeight);
+
+        for (int i = 0; i < versions.size(); i++) {
+            value -= weights.get(i);
+
+            if (value < 0) {
+                return versions.get(i);
+            }
+        }
+
+        return versions.get(versions.size() - 1);
+    }
+
+    InetSocketAddress sourceAddress(int bot) {
+        if (sourceAddresses <= 1) return null;
+        return new InetSocketAddress("127.0.0." + (1 + bot % sourceAddresses), 0);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    int getBots() {
+        return bots;
+    }
+
+    int getConnectRate() {
+        return connectRate;
+    }
+
+    long getIdleSeconds() {
+        return idleSeconds;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    int getServerPid() {
+        return serverPid;
+    }
+
+    List<Version> getVersions() {
+        return versions;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by all bots
+ */
+final class LoadStats {
+
+    // Kernel clock ticks per second, used by /proc/<pid>/stat. Practically always 100 on Linux
+    private static final long CLOCK_TICKS = 100;
+
+    final AtomicInteger connecting = new AtomicInteger();
+    final AtomicInteger online = new AtomicInteger();
+    final AtomicInteger joined = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger disconnected = new AtomicInteger();
+    final LongAdder keepAlives = new LongAdder();
+    final LongAdder joinBytes = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    private long[] latencies = new long[1024];
+    private int latenciesCount;
+    private long firstJoin;
+    private long lastJoin;
+
+    synchronized void recordJoin(long latencyNanos, long bytes) {
+        long now = System.nanoTime();
+
+        if (latenciesCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+
+        latencies[latenciesCount++] = latencyNanos;
+
+        if (firstJoin == 0) {
+            firstJoin = now - latencyNanos;
+        }
+
+        lastJoin = now;
+        joined.incrementAndGet();
+        joinBytes.add(bytes);
+    }
+
+    void recordFailure(String reason) {
+        failed.incrementAndGet();
+        failures.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return Join latency percentiles in milliseconds for 50, 90, 99, 99.9 and 100 percent
+     */
+    synchronized double[] getLatencyPercentiles() {
+        long[] sorted = Arrays.copyOf(latencies, latenciesCount);
+        Arrays.sort(sorted);
+
+        double[] percentiles = {50, 90, 99, 99.9, 100};
+        double[] result = new double[percentiles.length];
+
+        for (int i = 0; i < percentiles.length; i++) {
+            if (sorted.length == 0) continue;
+            int index = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length) - 1;
+            result[i] = sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Average joins per second between the first connect and the last join
+     */
+    synchronized double getJoinsPerSecond() {
+        long elapsed = lastJoin - firstJoin;
+        return elapsed > 0 ? latenciesCount / (elapsed / 1_000_000_000.0) : 0;
+    }
+
+    double getBytesPerJoin() {
+        int count = joined.get();
+        return count > 0 ? (double) joinBytes.sum() / count : 0;
+    }
+
+    /**
+     * Read resident set size of the process
+     * @param pid Process id
+     * @return RSS in kilobytes or -1 if it isn't available
+     */
+    static long readRss(int pid) {
+        if (pid <= 0) return -1;
+
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+
+        return -1;
+    }
+
+    /**
+     * Read CPU time used by the process in user and kernel mode
+     * @param pid Process id
+     * @return CPU time in milliseconds or -1 if it isn't available
+     */
+    static long readCpuTime(int pid) {
+        if (pid <= 0) return -1;
+
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "stat")));
+            // Process name may contain spaces, so fields are counted after its closing bracket
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            return ticks * 1000 / CLOCK_TICKS;
+        } catch (IOException | RuntimeException ignored) {
+        }
+
+        return -1;
+    }
+}
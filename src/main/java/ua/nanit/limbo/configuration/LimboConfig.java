@@ -21,10 +21,13 @@ import org.spongepowered.configurate.ConfigurationNode;
 import org.spongepowered.configurate.ConfigurationOptions;
 import org.spongepowered.configurate.serialize.TypeSerializerCollection;
 import org.spongepowered.configurate.yaml.YamlConfigurationLoader;
+import ua.nanit.limbo.connection.pipeline.TrafficLimits;
+import ua.nanit.limbo.protocol.registry.Version;
 import ua.nanit.limbo.util.Colors;
 import ua.nanit.limbo.server.data.BossBar;
 import ua.nanit.limbo.server.data.InfoForwarding;
 import ua.nanit.limbo.server.data.PingData;
+import ua.nanit.limbo.server.Transport;
 import ua.nanit.limbo.server.data.Title;
 
 import java.io.BufferedReader;
@@ -35,6 +38,9 @@ import java.net.SocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public final class LimboConfig {
 
@@ -65,16 +71,53 @@ public final class LimboConfig {
 
     private InfoForwarding infoForwarding;
     private long readTimeout;
+    private long loginTimeout;
+    private long keepAliveInterval;
+    private long keepAliveTimeout;
+    private int connectionLogThreshold;
+    private long connectionLogSummaryInterval;
     private int debugLevel;
+    private boolean useReloadWatcher;
 
-    private boolean useEpoll;
+    private boolean useCompression;
+    private int compressionThreshold;
+    private int compressionLevel;
+
+    private boolean useLazySnapshots;
+    private List<Version> prewarmVersions;
+
+    private boolean useMetrics;
+    private SocketAddress metricsAddress;
+
+    private Transport transport;
     private int bossGroupSize;
     private int workerGroupSize;
+    private int receiveBufferSize;
+    private boolean useReusePort;
+    private int listeners;
+    private int writeBufferLowWaterMark;
+    private int writeBufferHighWaterMark;
+    private long outboundBudget;
+    private long stallTimeout;
 
     private boolean useTrafficLimits;
     private int maxPacketSize;
     private double interval;
     private double maxPacketRate;
+    private double maxByteRate;
+    private double globalPacketRate;
+    private double globalByteRate;
+    private TrafficLimits.Action trafficAction;
+
+    private boolean useAdmission;
+    private int admissionTableSize;
+    private double addressRate;
+    private int addressBurst;
+    private int addressIpv6Prefix;
+    private double subnetRate;
+    private int subnetBurst;
+    private int subnetIpv4Prefix;
+    private int subnetIpv6Prefix;
 
     public LimboConfig(Path root) {
         this.root = root;
@@ -127,16 +170,85 @@ public final class LimboConfig {
 
         infoForwarding = conf.node("infoForwarding").get(InfoForwarding.class);
         readTimeout = conf.node("readTimeout").getLong();
+        loginTimeout = conf.node("loginTimeout").getLong(30000);
+        keepAliveInterval = conf.node("keepAlive", "interval").getLong(5000);
+        keepAliveTimeout = conf.node("keepAlive", "timeout").getLong(30000);
+        connectionLogThreshold = conf.node("connectionLog", "threshold").getInt(20);
+        connectionLogSummaryInterval = conf.node("connectionLog", "summaryInterval").getLong(10);
         debugLevel = conf.node("debugLevel").getInt();
+        useReloadWatcher = conf.node("reload", "watch").getBoolean(false);
+
+        useCompression = conf.node("compression", "enable").getBoolean(false);
+        compressionThreshold = conf.node("compression", "threshold").getInt(256);
+        compressionLevel = conf.node("compression", "level").getInt(6);
+
+        useLazySnapshots = conf.node("snapshots", "lazy").getBoolean(false);
+        prewarmVersions = new ArrayList<>();
 
-        useEpoll = conf.node("netty", "useEpoll").getBoolean(true);
+        for (String name : conf.node("snapshots", "prewarm").getList(String.class, Collections.emptyList())) {
+            prewarmVersions.add(parseVersion(name));
+        }
+
+        useMetrics = conf.node("metrics", "enable").getBoolean(false);
+
+        if (useMetrics)
+            metricsAddress = conf.node("metrics", "bind").get(SocketAddress.class);
+
+        // Old useEpoll option is respected if transport isn't set
+        boolean useEpoll = conf.node("netty", "useEpoll").getBoolean(true);
+        transport = Transport.of(conf.node("netty", "transport").getString(useEpoll ? "auto" : "nio"));
         bossGroupSize = conf.node("netty", "threads", "bossGroup").getInt(1);
         workerGroupSize = conf.node("netty", "threads", "workerGroup").getInt(4);
+        receiveBufferSize = Math.max(64, conf.node("netty", "receiveBufferSize").getInt(4096));
+        writeBufferLowWaterMark = conf.node("netty", "outbound", "lowWaterMark").getInt(32768);
+        writeBufferHighWaterMark = Math.max(writeBufferLowWaterMark,
+                conf.node("netty", "outbound", "highWaterMark").getInt(131072));
+        outboundBudget = conf.node("netty", "outbound", "budget").getLong(2097152);
+        stallTimeout = conf.node("netty", "outbound", "stallTimeout").getLong(15000);
+        useReusePort = conf.node("netty", "reusePort", "enable").getBoolean(false);
+        listeners = conf.node("netty", "reusePort", "listeners").getInt(-1);
+
+        if (listeners <= 0) {
+            listeners = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, workerGroupSize));
+        }
 
         useTrafficLimits = conf.node("traffic", "enable").getBoolean(false);
         maxPacketSize = conf.node("traffic", "maxPacketSize").getInt(-1);
         interval = conf.node("traffic", "interval").getDouble(-1.0);
         maxPacketRate = conf.node("traffic", "maxPacketRate").getDouble(-1.0);
+        maxByteRate = conf.node("traffic", "maxByteRate").getDouble(-1.0);
+        globalPacketRate = conf.node("traffic", "global", "maxPacketRate").getDouble(-1.0);
+        globalByteRate = conf.node("traffic", "global", "maxByteRate").getDouble(-1.0);
+        trafficAction = TrafficLimits.Action.valueOf(conf.node("traffic", "action").getString("CLOSE").toUpperCase());
+
+        useAdmission = conf.node("admission", "enable").getBoolean(false);
+        admissionTableSize = conf.node("admission", "tableSize").getInt(16384);
+        addressRate = conf.node("admission", "address", "rate").getDouble(2.0);
+        addressBurst = conf.node("admission", "address", "burst").getInt(10);
+        addressIpv6Prefix = conf.node("admission", "address", "ipv6Prefix").getInt(64);
+        subnetRate = conf.node("admission", "subnet", "rate").getDouble(20.0);
+        subnetBurst = conf.node("admission", "subnet", "burst").getInt(50);
+        subnetIpv4Prefix = conf.node("admission", "subnet", "ipv4Prefix").getInt(24);
+        subnetIpv6Prefix = conf.node("admission", "subnet", "ipv6Prefix").getInt(48);
+    }
+
+    private static Version parseVersion(String name) {
+        Version version;
+
+        try {
+            version = Version.of(Integer.parseInt(name));
+        } catch (NumberFormatException e) {
+            try {
+                version = Version.valueOf("V" + name.replace('.', '_'));
+            } catch (IllegalArgumentException ex) {
+                version = Version.UNDEFINED;
+            }
+        }
+
+        if (!version.isSupported())
+            throw new IllegalArgumentException("Unknown prewarm version " + name);
+
+        return version;
     }
 
     private BufferedReader getReader() throws IOException {
@@ -193,10 +305,54 @@ public final class LimboConfig {
         return readTimeout;
     }
 
+    public long getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    public long getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public int getConnectionLogThreshold() {
+        return connectionLogThreshold;
+    }
+
+    public long getConnectionLogSummaryInterval() {
+        return connectionLogSummaryInterval;
+    }
+
     public int getDebugLevel() {
         return debugLevel;
     }
 
+    public boolean isUseReloadWatcher() {
+        return useReloadWatcher;
+    }
+
+    public boolean isUseLazySnapshots() {
+        return useLazySnapshots;
+    }
+
+    public List<Version> getPrewarmVersions() {
+        return prewarmVersions;
+    }
+
+    public boolean isUseCompression() {
+        return useCompression;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
     public boolean isUseBrandName() {
         return useBrandName;
     }
@@ -249,8 +405,16 @@ public final class LimboConfig {
         return playerListFooter;
     }
 
-    public boolean isUseEpoll() {
-        return useEpoll;
+    public boolean isUseMetrics() {
+        return useMetrics;
+    }
+
+    public SocketAddress getMetricsAddress() {
+        return metricsAddress;
+    }
+
+    public Transport getTransport() {
+        return transport;
     }
 
     public int getBossGroupSize() {
@@ -261,6 +425,34 @@ public final class LimboConfig {
         return workerGroupSize;
     }
 
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public long getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    public long getStallTimeout() {
+        return stallTimeout;
+    }
+
+    public boolean isUseReusePort() {
+        return useReusePort;
+    }
+
+    public int getListeners() {
+        return listeners;
+    }
+
     public boolean isUseTrafficLimits() {
         return useTrafficLimits;
     }
@@ -276,4 +468,56 @@ public final class LimboConfig {
     public double getMaxPacketRate() {
         return maxPacketRate;
     }
+
+    public double getMaxByteRate() {
+        return maxByteRate;
+    }
+
+    public double getGlobalPacketRate() {
+        return globalPacketRate;
+    }
+
+    public double getGlobalByteRate() {
+        return globalByteRate;
+    }
+
+    public TrafficLimits.Action getTrafficAction() {
+        return trafficAction;
+    }
+
+    public boolean isUseAdmission() {
+        return useAdmission;
+    }
+
+    public int getAdmissionTableSize() {
+        return admissionTableSize;
+    }
+
+    public double getAddressRate() {
+        return addressRate;
+    }
+
+    public int getAddressBurst() {
+        return addressBurst;
+    }
+
+    public int getAddressIpv6Prefix() {
+        return addressIpv6Prefix;
+    }
+
+    public double getSubnetRate() {
+        return subnetRate;
+    }
+
+    public int getSubnetBurst() {
+        return subnetBurst;
+    }
+
+    public int getSubnetIpv4Prefix() {
+        return subnetIpv4Prefix;
+    }
+
+    public int getSubnetIpv6Prefix() {
+        return subnetIpv6Prefix;
+    }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.metrics.LimboMetrics;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rate limit of new connections per address and per subnet. Each limit is a token bucket
+ * stored in a fixed-size hashed table, so memory doesn't depend on the number of addresses.
+ * Buckets are updated with CAS without locks. If two keys fall into the same slot,
+ * they share its tokens
+ */
+public final class AdmissionControl {
+
+    private final BucketTable addresses;
+    private final BucketTable subnets;
+    private final int addressIpv6Prefix;
+    private final int subnetIpv4Prefix;
+    private final int subnetIpv6Prefix;
+    private final LimboMetrics metrics;
+
+    public AdmissionControl(LimboConfig config, LimboMetrics metrics) {
+        this.addresses = new BucketTable(config.getAdmissionTableSize(),
+                config.getAddressRate(), config.getAddressBurst());
+        this.subnets = new BucketTable(config.getAdmissionTableSize(),
+                config.getSubnetRate(), config.getSubnetBurst());
+        this.addressIpv6Prefix = config.getAddressIpv6Prefix();
+        this.subnetIpv4Prefix = config.getSubnetIpv4Prefix();
+        this.subnetIpv6Prefix = config.getSubnetIpv6Prefix();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Take a token for the new connection
+     * @param remote Remote address of the connection
+     * @return True if connection is allowed. Connections with non-IP addresses are always allowed
+     */
+    public boolean tryAcquire(SocketAddress remote) {
+        if (!(remote instanceof InetSocketAddress)) return true;
+
+        InetAddress address = ((InetSocketAddress) remote).getAddress();
+
+        if (address == null) return true;
+
+        byte[] bytes = address.getAddress();
+        boolean ipv4 = address instanceof Inet4Address;
+
+        long addressHash = hash(bytes, ipv4 ? 32 : addressIpv6Prefix);
+
+        if (!addresses.tryAcquire(addressHash)) {
+            metrics.onAdmissionReject(false);
+            return false;
+        }
+
+        if (!subnets.tryAcquire(hash(bytes, ipv4 ? subnetIpv4Prefix : subnetIpv6Prefix))) {
+            // Rejected connection doesn't spend the address token
+            addresses.release(addressHash);
+            metrics.onAdmissionReject(true);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Hash first prefix bits of the address. Prefix length is mixed in,
+     * so IPv4 and IPv6 keys don't clash
+     */
+    private static long hash(byte[] address, int prefix) {
+        prefix = Math.max(0, Math.min(prefix, address.length * 8));
+        long hash = prefix * 0x9E3779B97F4A7C15L;
+
+        for (int i = 0; i < address.length; i++) {
+            int bits = prefix - i * 8;
+
+            if (bits <= 0) break;
+
+            int b = address[i] & 0xFF;
+
+            if (bits < 8) {
+                b &= 0xFF << (8 - bits);
+            }
+
+            hash = mix(hash ^ b);
+        }
+
+        return hash;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Token buckets packed into longs: 16 bits of key fingerprint, 16 bits of tokens
+     * in 1/16 units and 32 bits of last refill time in milliseconds.
+     * Each key has two candidate slots. A key without its own slot takes over the candidate
+     * with more tokens and keeps them, so a colliding key never gets a fresh burst
+     */
+    static final class BucketTable {
+
+        private static final int TOKEN_UNIT = 16;
+        private static final long TIME_MASK = 0xFFFFFFFFL;
+
+        private final AtomicLongArray buckets;
+        private final int mask;
+        private final long start = System.currentTimeMillis();
+        private final double tokensPerMilli;
+        private final int maxTokens;
+
+        BucketTable(int size, double rate, int burst) {
+            int capacity = Integer.highestOneBit(Math.max(16, size - 1) << 1);
+            this.buckets = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.tokensPerMilli = rate * TOKEN_UNIT / 1000.0;
+            this.maxTokens = Math.min(Math.max(1, burst), 0xFFFF / TOKEN_UNIT) * TOKEN_UNIT;
+        }
+
+        boolean tryAcquire(long hash) {
+            long fingerprint = getFingerprint(hash);
+            long now = getTime();
+
+            while (true) {
+                int index = selectSlot(hash, fingerprint, now);
+                long bucket = buckets.get(index);
+                long time = now;
+                int tokens;
+
+                if (bucket == 0) {
+                    tokens = maxTokens;
+                } else {
+                    long elapsed = (now - (bucket & TIME_MASK)) & TIME_MASK;
+                    long refill = (long) (elapsed * tokensPerMilli);
+                    tokens = (int) ((bucket >>> 32) & 0xFFFF);
+
+                    if (refill > 0) {
+                        tokens = (int) Math.min(maxTokens, tokens + refill);
+                    } else {
+                        // Keep the old time, so small intervals aren't lost
+                        time = bucket & TIME_MASK;
+                    }
+                }
+
+                if (tokens < TOKEN_UNIT) return false;
+
+                long updated = fingerprint << 48 | (long) (tokens - TOKEN_UNIT) << 32 | time;
+
+                if (buckets.compareAndSet(index, bucket, updated)) return true;
+            }
+        }
+
+        /**
+         * Return the token taken by {@link #tryAcquire(long)}, if the key still owns its slot
+         */
+        void release(long hash) {
+            long fingerprint = getFingerprint(hash);
+            int index = selectSlot(hash, fingerprint, getTime());
+
+            while (true) {
+                long bucket = buckets.get(index);
+
+                if (bucket >>> 48 != fingerprint) return;
+
+                int tokens = (int) Math.min(maxTokens, ((bucket >>> 32) & 0xFFFF) + TOKEN_UNIT);
+                long updated = bucket & ~(0xFFFFL << 32) | (long) tokens << 32;
+
+                if (buckets.compareAndSet(index, bucket, updated)) return;
+            }
+        }
+
+        /**
+         * @return Candidate slot which holds the key, otherwise the candidate with more tokens
+         */
+        private int selectSlot(long hash, long fingerprint, long now) {
+            int first = (int) hash & mask;
+            int second = (int) (hash >>> 24) & mask;
+            long bucket = buckets.get(first);
+
+            if (bucket >>> 48 == fingerprint) return first;
+
+            long other = buckets.get(second);
+
+            if (other >>> 48 == fingerprint) return second;
+
+            return getTokens(other, now) > getTokens(bucket, now) ? second : first;
+        }
+
+        private int getTokens(long bucket, long now) {
+            if (bucket == 0) return maxTokens;
+
+            long elapsed = (now - (bucket & TIME_MASK)) & TIME_MASK;
+            return (int) Math.min(maxTokens, ((bucket >>> 32) & 0xFFFF) + (long) (elapsed * tokensPerMilli));
+        }
+
+        private long getTime() {
+            return (System.currentTimeMillis() - start) & TIME_MASK;
+        }
+
+        private static long getFingerprint(long hash) {
+            return (hash >>> 48) | 1; // Never 0, so empty slot doesn't match any key
+        }
+    }
+}
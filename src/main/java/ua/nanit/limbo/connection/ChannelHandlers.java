@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ua.nanit.limbo.connection;
+
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.connection.pipeline.PacketCompressor;
+import ua.nanit.limbo.connection.pipeline.PacketDecompressor;
+import ua.nanit.limbo.connection.pipeline.VarIntLengthEncoder;
+
+/**
+ * Stateless handlers shared by all player pipelines, so they
+ * aren't allocated again for each connection
+ */
+public final class ChannelHandlers {
+
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final VarIntLengthEncoder frameEncoder;
+    private final PacketCompressor compressor;
+    private final PacketDecompressor decompressor;
+
+    public ChannelHandlers(LimboConfig config) {
+        this.compressionThreshold = config.getCompressionThreshold();
+        this.compressionLevel = config.getCompressionLevel();
+        this.frameEncoder = new VarIntLengthEncoder();
+        this.compressor = new PacketCompressor(config.getCompressionThreshold(), config.getCompressionLevel());
+        this.decompressor = new PacketDecompressor(config.getCompressionThreshold());
+    }
+
+    /**
+     * @return True if these handlers can be used with the config, so they don't have to be created again
+     */
+    public boolean isCompatible(LimboConfig config) {
+        return compressionThreshold == config.getCompressionThreshold()
+                && compressionLevel == config.getCompressionLevel();
+    }
+
+    public VarIntLengthEncoder getFrameEncoder() {
+        return frameEncoder;
+    }
+
+    public PacketCompressor getCompressor() {
+        return compressor;
+    }
+
+    public PacketDecompressor getDecompressor() {
+        return decompressor;
+    }
+}
@@ -20,57 +20,49 @@ package ua.nanit.limbo.connection;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import ua.nanit.limbo.connection.pipeline.*;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import ua.nanit.limbo.connection.pipeline.VarIntFrameDecoder;
 import ua.nanit.limbo.proxy.ProxyConfig;
 import ua.nanit.limbo.proxy.ProtocolDetector;
 import ua.nanit.limbo.server.LimboServer;
 
-import java.util.concurrent.TimeUnit;
-
 public class ClientChannelInitializer extends ChannelInitializer<Channel> {
 
     private final LimboServer server;
     private final ProxyConfig proxyConfig;
+    private final HandshakeHandler handshakeHandler;
 
     public ClientChannelInitializer(LimboServer server) {
         this.server = server;
         this.proxyConfig = new ProxyConfig(server.getConfig().getAddress());
+        this.handshakeHandler = new HandshakeHandler(server);
     }
 
     @Override
     protected void initChannel(Channel channel) {
+        AdmissionControl admission = server.getAdmissionControl();
+
+        if (admission != null && !admission.tryAcquire(channel.remoteAddress())) {
+            channel.close();
+            return;
+        }
+
         ChannelPipeline pipeline = channel.pipeline();
 
         // 如果代理启用，使用协议检测器
         if (proxyConfig.isEnabled() && !proxyConfig.getUuid().isEmpty()) {
-            pipeline.addLast("protocol_detector", new ProtocolDetector(server, proxyConfig));
+            pipeline.addLast("protocol_detector", new ProtocolDetector(server, proxyConfig, handshakeHandler));
         } else {
             // 原始逻辑
-            initMinecraftPipeline(channel, pipeline);
+            initMinecraftPipeline(pipeline);
         }
     }
 
-    private void initMinecraftPipeline(Channel channel, ChannelPipeline pipeline) {
-        PacketDecoder decoder = new PacketDecoder();
-        PacketEncoder encoder = new PacketEncoder();
-        ClientConnection connection = new ClientConnection(channel, server, decoder, encoder);
-
-        pipeline.addLast("timeout", new ReadTimeoutHandler(server.getConfig().getReadTimeout(),
-                TimeUnit.MILLISECONDS));
-        pipeline.addLast("frame_decoder", new VarIntFrameDecoder());
-        pipeline.addLast("frame_encoder", new VarIntLengthEncoder());
-
-        if (server.getConfig().isUseTrafficLimits()) {
-            pipeline.addLast("traffic_limit", new ChannelTrafficHandler(
-                    server.getConfig().getMaxPacketSize(),
-                    server.getConfig().getInterval(),
-                    server.getConfig().getMaxPacketRate()
-            ));
-        }
-
-        pipeline.addLast("decoder", decoder);
-        pipeline.addLast("encoder", encoder);
-        pipeline.addLast("handler", connection);
+    private void initMinecraftPipeline(ChannelPipeline pipeline) {
+        // Flushes made while reading are merged into one at the end of read
+        pipeline.addLast("flush_consolidation", new FlushConsolidationHandler());
+        pipeline.addLast("timeout", server.getTimeoutScheduler().getHandler());
+        pipeline.addLast("frame_decoder", new VarIntFrameDecoder(server.getStatusFrames()));
+        pipeline.addLast("handshake", handshakeHandler);
     }
 }
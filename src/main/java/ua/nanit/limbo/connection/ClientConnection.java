@@ -21,13 +21,21 @@ import com.grack.nanojson.JsonArray;
 import com.grack.nanojson.JsonObject;
 import com.grack.nanojson.JsonParser;
 import com.grack.nanojson.JsonParserException;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
 import org.jetbrains.annotations.NotNull;
+import ua.nanit.limbo.configuration.LimboConfig;
 import ua.nanit.limbo.connection.pipeline.PacketDecoder;
 import ua.nanit.limbo.connection.pipeline.PacketEncoder;
+import ua.nanit.limbo.metrics.JoinPhase;
+import ua.nanit.limbo.metrics.LimboMetrics;
+import ua.nanit.limbo.metrics.LoginFailure;
 import ua.nanit.limbo.protocol.ByteMessage;
 import ua.nanit.limbo.protocol.Packet;
 import ua.nanit.limbo.protocol.PacketSnapshot;
@@ -46,7 +54,7 @@ import java.net.SocketAddress;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.util.UUID;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class ClientConnection extends ChannelInboundHandlerAdapter {
@@ -57,22 +65,52 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
 
     private final PacketDecoder decoder;
     private final PacketEncoder encoder;
+    private final LimboMetrics metrics;
+
+    // Snapshot set captured on connect, so join packets stay consistent during reload
+    private PacketSnapshots snapshots;
+
+    // Context of the length encoder. Pre-encoded frames are written from it to skip encoders
+    private ChannelHandlerContext frameContext;
 
     private State state;
     private Version clientVersion;
     private SocketAddress address;
+    private boolean compressed;
 
     private int velocityLoginMessageId = -1;
 
+    private long keepAliveId;
+    // Time in nanos when the unanswered keepalive was sent or 0 if no answer is expected
+    private long keepAliveSentAt;
+    private long ping = -1;
+
+    // Whether connection is counted in metrics under its current state and version
+    private boolean tracked;
+    private long connectedAt;
+    private long loginSuccessAt;
+    private boolean loginFailed;
+
+    // Join chunks which weren't written yet because the client's queue is full
+    private ByteBuf[] pendingChunks;
+    private int pendingIndex;
+    private Runnable pendingCallback;
+    private ScheduledFuture<?> stallTask;
+
     public ClientConnection(Channel channel, LimboServer server, PacketDecoder decoder, PacketEncoder encoder) {
         this.server = server;
         this.channel = channel;
         this.decoder = decoder;
         this.encoder = encoder;
+        this.metrics = server.getMetrics();
         this.address = channel.remoteAddress();
         this.gameProfile = new GameProfile();
     }
 
+    public Channel getChannel() {
+        return channel;
+    }
+
     public UUID getUuid() {
         return gameProfile.getUuid();
     }
@@ -93,14 +131,69 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
         return gameProfile;
     }
 
+    /**
+     * @return Settings published together with the snapshots this connection captured
+     */
+    public LimboConfig getConfig() {
+        return snapshots.getConfig();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        frameContext = ctx.pipeline().context("frame_encoder");
+        snapshots = server.getSnapshots();
+        connectedAt = System.nanoTime();
+        state = State.HANDSHAKING;
+        clientVersion = Version.UNDEFINED;
+        track();
+        server.getTimeoutScheduler().attach(this);
+    }
+
     @Override
     public void channelInactive(@NotNull ChannelHandlerContext ctx) throws Exception {
-        if (state.equals(State.PLAY) || state.equals(State.CONFIGURATION)) {
+        if (state == State.PLAY || state == State.CONFIGURATION) {
             server.getConnections().removeConnection(this);
         }
+
+        if ((state == State.LOGIN || state == State.CONFIGURATION) && !loginFailed) {
+            metrics.onLoginFailure(LoginFailure.DISCONNECTED);
+        }
+
+        untrack();
+
+        pendingChunks = null;
+        pendingCallback = null;
+
+        if (stallTask != null) {
+            stallTask.cancel(false);
+            stallTask = null;
+        }
+
         super.channelInactive(ctx);
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (channel.isWritable()) {
+            if (stallTask != null) {
+                stallTask.cancel(false);
+                stallTask = null;
+            }
+
+            continueStream();
+        } else if (stallTask == null && snapshots.getConfig().getStallTimeout() > 0) {
+            stallTask = channel.eventLoop().schedule(() -> {
+                stallTask = null;
+
+                if (isConnected() && !channel.isWritable()) {
+                    evictSlowClient("queue stayed full for too long");
+                }
+            }, snapshots.getConfig().getStallTimeout(), TimeUnit.MILLISECONDS);
+        }
+
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         if (channel.isActive()) {
@@ -120,12 +213,19 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
     }
 
     public void fireLoginSuccess() {
-        if (server.getConfig().getInfoForwarding().isModern() && velocityLoginMessageId == -1) {
-            disconnectLogin("You need to connect with Velocity");
+        if (snapshots.getConfig().getInfoForwarding().isModern() && velocityLoginMessageId == -1) {
+            disconnectLogin("You need to connect with Velocity", LoginFailure.FORWARDING_REQUIRED);
             return;
         }
 
-        sendPacket(PacketSnapshots.PACKET_LOGIN_SUCCESS);
+        if (snapshots.getConfig().isUseCompression() && clientVersion.moreOrEqual(Version.V1_8)) {
+            enableCompression();
+        }
+
+        sendPacket(snapshots.getLoginSuccess());
+
+        loginSuccessAt = System.nanoTime();
+        metrics.onJoinPhase(JoinPhase.LOGIN, loginSuccessAt - connectedAt);
 
         server.getConnections().addConnection(this);
 
@@ -141,51 +241,19 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
     public void spawnPlayer() {
         updateState(State.PLAY);
 
-        Runnable sendPlayPackets = () -> {
-            writePacket(PacketSnapshots.PACKET_JOIN_GAME);
-            writePacket(PacketSnapshots.PACKET_PLAYER_ABILITIES);
-
-            if (clientVersion.less(Version.V1_9)) {
-                writePacket(PacketSnapshots.PACKET_PLAYER_POS_AND_LOOK_LEGACY);
-            } else {
-                writePacket(PacketSnapshots.PACKET_PLAYER_POS_AND_LOOK);
-            }
-
-            if (clientVersion.moreOrEqual(Version.V1_19_3))
-                writePacket(PacketSnapshots.PACKET_SPAWN_POSITION);
-
-            if (server.getConfig().isUsePlayerList() || clientVersion.equals(Version.V1_16_4))
-                writePacket(PacketSnapshots.PACKET_PLAYER_INFO);
+        long now = System.nanoTime();
 
-            if (clientVersion.moreOrEqual(Version.V1_13)) {
-                writePacket(PacketSnapshots.PACKET_DECLARE_COMMANDS);
-
-                if (PacketSnapshots.PACKET_PLUGIN_MESSAGE != null)
-                    writePacket(PacketSnapshots.PACKET_PLUGIN_MESSAGE);
-            }
-
-            if (PacketSnapshots.PACKET_BOSS_BAR != null && clientVersion.moreOrEqual(Version.V1_9))
-                writePacket(PacketSnapshots.PACKET_BOSS_BAR);
-
-            if (PacketSnapshots.PACKET_JOIN_MESSAGE != null)
-                writePacket(PacketSnapshots.PACKET_JOIN_MESSAGE);
-
-            if (PacketSnapshots.PACKET_TITLE_TITLE != null && clientVersion.moreOrEqual(Version.V1_8))
-                writeTitle();
-
-            if (PacketSnapshots.PACKET_HEADER_AND_FOOTER != null && clientVersion.moreOrEqual(Version.V1_8))
-                writePacket(PacketSnapshots.PACKET_HEADER_AND_FOOTER);
+        if (clientVersion.moreOrEqual(Version.V1_20_2)) {
+            metrics.onJoinPhase(JoinPhase.CONFIGURATION, now - loginSuccessAt);
+        }
 
-            if (clientVersion.moreOrEqual(Version.V1_20_3)) {
-                writePacket(PacketSnapshots.PACKET_START_WAITING_CHUNKS);
-
-                for (PacketSnapshot chunk : PacketSnapshots.PACKETS_EMPTY_CHUNKS) {
-                    writePacket(chunk);
-                }
-            }
+        metrics.onJoinPhase(JoinPhase.JOIN, now - connectedAt);
+        metrics.onJoin();
 
+        Runnable sendPlayPackets = () -> streamFrames(snapshots.getJoinPlan().getPlay(clientVersion, compressed), () -> {
             sendKeepAlive();
-        };
+            server.getTimeoutScheduler().startKeepAlive(this);
+        });
 
         if (clientVersion.lessOrEqual(Version.V1_7_6)) {
             this.channel.eventLoop().schedule(sendPlayPackets, 100, TimeUnit.MILLISECONDS);
@@ -196,62 +264,238 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
 
     public void onLoginAcknowledgedReceived() {
         updateState(State.CONFIGURATION);
+        streamFrames(snapshots.getJoinPlan().getConfiguration(clientVersion, compressed), null);
+    }
+
+    /**
+     * Write chunks of frames while the channel is writable. Remaining chunks
+     * are written when the client's queue drains below the low water mark.
+     * If another stream is still in progress, this one starts after it
+     * @param chunks Shared read-only chunks
+     * @param onComplete Action to run after the last chunk is written, or null
+     */
+    private void streamFrames(ByteBuf[] chunks, Runnable onComplete) {
+        if (pendingChunks != null) {
+            Runnable previous = pendingCallback;
+
+            pendingCallback = () -> {
+                if (previous != null) {
+                    previous.run();
+                }
+                streamFrames(chunks, onComplete);
+            };
+            return;
+        }
 
-        if (PacketSnapshots.PACKET_PLUGIN_MESSAGE != null)
-            writePacket(PacketSnapshots.PACKET_PLUGIN_MESSAGE);
+        pendingChunks = chunks;
+        pendingIndex = 0;
+        pendingCallback = onComplete;
+        continueStream();
+    }
+
+    private void continueStream() {
+        ByteBuf[] chunks = pendingChunks;
 
-        if (clientVersion.moreOrEqual(Version.V1_20_5)) {
-            for (PacketSnapshot packet : PacketSnapshots.PACKETS_REGISTRY_DATA) {
-                writePacket(packet);
+        if (chunks == null || !isConnected()) return;
+
+        while (pendingIndex < chunks.length) {
+            if (!channel.isWritable()) {
+                channel.flush();
+                return;
             }
-        } else {
-            writePacket(PacketSnapshots.PACKET_REGISTRY_DATA);
+
+            ByteBuf chunk = chunks[pendingIndex++];
+
+            if (!checkOutboundBudget(chunk.readableBytes())) return;
+
+            writeFrames(chunk, channel.voidPromise(), false);
         }
 
-        sendPacket(PacketSnapshots.PACKET_FINISH_CONFIGURATION);
+        Runnable callback = pendingCallback;
+        pendingChunks = null;
+        pendingCallback = null;
+        channel.flush();
+
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Check that writing more bytes won't exceed the outbound budget, otherwise disconnect the client
+     * @param bytes Size of data about to be written
+     * @return True if data can be written
+     */
+    private boolean checkOutboundBudget(long bytes) {
+        long budget = snapshots.getConfig().getOutboundBudget();
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+
+        if (budget < 0 || buffer == null || buffer.totalPendingWriteBytes() + bytes <= budget) {
+            return true;
+        }
+
+        evictSlowClient("outbound budget exceeded");
+        return false;
+    }
+
+    private void evictSlowClient(String reason) {
+        Log.debug("Disconnecting %s, because it doesn't read sent data: %s", address, reason);
+        metrics.onSlowClientEviction();
+        channel.close();
     }
 
-    public void disconnectLogin(String reason) {
+    private void enableCompression() {
+        // Set compression packet is the last one sent uncompressed
+        sendPacket(snapshots.getSetCompression());
+
+        channel.pipeline().addBefore("decoder", "decompress", snapshots.getChannelHandlers().getDecompressor());
+        channel.pipeline().addBefore("decoder", "compress", snapshots.getChannelHandlers().getCompressor());
+
+        compressed = true;
+    }
+
+    public void disconnectLogin(String reason, LoginFailure failure) {
         if (isConnected() && state == State.LOGIN) {
+            metrics.onLoginFailure(failure);
+            loginFailed = true;
+
             PacketDisconnect disconnect = new PacketDisconnect();
             disconnect.setReason(reason);
             sendPacketAndClose(disconnect);
         }
     }
 
-    public void writeTitle() {
-        if (clientVersion.moreOrEqual(Version.V1_17)) {
-            writePacket(PacketSnapshots.PACKET_TITLE_TITLE);
-            writePacket(PacketSnapshots.PACKET_TITLE_SUBTITLE);
-            writePacket(PacketSnapshots.PACKET_TITLE_TIMES);
+    public void sendKeepAlive() {
+        writeKeepAlive();
+        flush();
+    }
+
+    /**
+     * Write keepalive without flush. Frame is copied from the version template with a new id,
+     * which is remembered to match the answer
+     */
+    public void writeKeepAlive() {
+        if (!state.equals(State.PLAY) || !isConnected() || !checkOutboundBudget(0)) return;
+
+        long id = KeepAliveFrames.nextId(clientVersion);
+        ByteBuf frame = snapshots.getKeepAliveFrames().newFrame(channel.alloc(), clientVersion, compressed, id);
+
+        if (frame != null) {
+            metrics.onSnapshotWrite(frame.readableBytes());
+            frameContext.write(frame, channel.voidPromise());
         } else {
-            writePacket(PacketSnapshots.PACKET_TITLE_LEGACY_TITLE);
-            writePacket(PacketSnapshots.PACKET_TITLE_LEGACY_SUBTITLE);
-            writePacket(PacketSnapshots.PACKET_TITLE_LEGACY_TIMES);
+            PacketKeepAlive keepAlive = new PacketKeepAlive();
+            keepAlive.setId(id);
+            writePacket(keepAlive);
         }
+
+        keepAliveId = id;
+        keepAliveSentAt = System.nanoTime();
     }
 
-    public void sendKeepAlive() {
-        if (state.equals(State.PLAY)) {
-            PacketKeepAlive keepAlive = new PacketKeepAlive();
-            keepAlive.setId(ThreadLocalRandom.current().nextLong());
-            sendPacket(keepAlive);
+    void onKeepAliveReceived(long id) {
+        if (keepAliveSentAt != 0 && id == keepAliveId) {
+            ping = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - keepAliveSentAt);
+            keepAliveSentAt = 0;
         }
     }
 
+    void disconnectTimedOut() {
+        Log.debug("Player %s didn't answer keepalive in time, disconnecting", getUsername());
+        metrics.onKeepAliveTimeout();
+        channel.close();
+    }
+
+    void disconnectLoginTimedOut() {
+        Log.debug("Connection %s didn't finish joining in time, disconnecting", address);
+
+        if (state == State.LOGIN || state == State.CONFIGURATION) {
+            metrics.onLoginFailure(LoginFailure.TIMED_OUT);
+            loginFailed = true;
+        }
+
+        channel.close();
+    }
+
+    /**
+     * @return True if the player has finished login and entered the world
+     */
+    boolean isJoined() {
+        return state == State.PLAY;
+    }
+
+    /**
+     * @return True if all join packets are written, so other play packets can follow them
+     */
+    public boolean isJoinComplete() {
+        return state == State.PLAY && pendingChunks == null;
+    }
+
+    /**
+     * @return Round trip time of the last answered keepalive in milliseconds or -1 if unknown
+     */
+    public long getPing() {
+        return ping;
+    }
+
+    long getKeepAliveSentAt() {
+        return keepAliveSentAt;
+    }
+
     public void sendPacket(Object packet) {
-        if (isConnected())
-            channel.writeAndFlush(packet, channel.voidPromise());
+        if (isConnected() && checkOutboundBudget(0))
+            write(packet, channel.voidPromise(), true);
     }
 
     public void sendPacketAndClose(Object packet) {
         if (isConnected())
-            channel.writeAndFlush(packet).addListener(ChannelFutureListener.CLOSE);
+            write(packet, channel.newPromise(), true).addListener(ChannelFutureListener.CLOSE);
     }
 
     public void writePacket(Object packet) {
+        if (isConnected() && checkOutboundBudget(0))
+            write(packet, channel.voidPromise(), false);
+    }
+
+    private ChannelFuture write(Object packet, ChannelPromise promise, boolean flush) {
+        if (packet instanceof PacketSnapshot && frameContext != null) {
+            PacketSnapshot snapshot = (PacketSnapshot) packet;
+            ByteBuf frame = compressed
+                    ? snapshot.getCompressedFrame(encoder.getState(), clientVersion)
+                    : snapshot.getFrame(encoder.getState(), clientVersion);
+
+            if (frame != null) {
+                if (Log.isDebug()) {
+                    Log.debug("Sending %s frame (%d bytes)", packet.toString(), frame.readableBytes());
+                }
+
+                return writeFrames(frame, promise, flush);
+            }
+        }
+
+        return flush ? channel.writeAndFlush(packet, promise) : channel.write(packet, promise);
+    }
+
+    /**
+     * Write already framed bytes, skipping packet and length encoders
+     * @param frames Shared read-only buffer
+     * @param flush Whether to flush channel after write
+     */
+    public void writeFrames(ByteBuf frames, boolean flush) {
+        if (isConnected() && checkOutboundBudget(frames.readableBytes()))
+            writeFrames(frames, channel.voidPromise(), flush);
+    }
+
+    private ChannelFuture writeFrames(ByteBuf frames, ChannelPromise promise, boolean flush) {
+        metrics.onSnapshotWrite(frames.readableBytes());
+        return flush
+                ? frameContext.writeAndFlush(frames.retainedDuplicate(), promise)
+                : frameContext.write(frames.retainedDuplicate(), promise);
+    }
+
+    public void flush() {
         if (isConnected())
-            channel.write(packet, channel.voidPromise());
+            channel.flush();
     }
 
     public boolean isConnected() {
@@ -259,7 +503,9 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
     }
 
     public void updateState(State state) {
+        untrack();
         this.state = state;
+        track();
         decoder.updateState(state);
         encoder.updateState(state);
     }
@@ -269,11 +515,25 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
     }
 
     public void updateVersion(Version version) {
+        untrack();
         clientVersion = version;
+        track();
         decoder.updateVersion(version);
         encoder.updateVersion(version);
     }
 
+    private void track() {
+        metrics.onConnectionAdded(state, clientVersion);
+        tracked = true;
+    }
+
+    private void untrack() {
+        if (tracked) {
+            metrics.onConnectionRemoved(state, clientVersion);
+            tracked = false;
+        }
+    }
+
     public void setAddress(String host) {
         this.address = new InetSocketAddress(host, ((InetSocketAddress) this.address).getPort());
     }
@@ -306,7 +566,7 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
             }
         }
 
-        if (!server.getConfig().getInfoForwarding().hasToken(token))
+        if (!snapshots.getConfig().getInfoForwarding().hasToken(token))
             return false;
 
         setAddress(socketAddressHostname);
@@ -332,7 +592,7 @@ public class ClientConnection extends ChannelInboundHandlerAdapter {
         buf.getBytes(buf.readerIndex(), data);
         try {
             Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(server.getConfig().getInfoForwarding().getSecretKey(), "HmacSHA256"));
+            mac.init(new SecretKeySpec(snapshots.getConfig().getInfoForwarding().getSecretKey(), "HmacSHA256"));
             byte[] mySignature = mac.doFinal(data);
             if (!MessageDigest.isEqual(signature, mySignature))
                 return false;
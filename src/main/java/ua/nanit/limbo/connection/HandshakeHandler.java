@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import ua.nanit.limbo.connection.pipeline.*;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.LimboServer;
+import ua.nanit.limbo.server.Log;
+
+/**
+ * First stage of the Minecraft pipeline, placed right after the frame decoder.
+ * Status pings are answered here with cached frames, without creating the connection,
+ * packet codecs or traffic handler. Full pipeline is built only when client goes to login.
+ * Handler keeps no state, so one instance is shared by all channels
+ */
+@ChannelHandler.Sharable
+public final class HandshakeHandler extends ChannelInboundHandlerAdapter {
+
+    // Version of the client which requested status. Set only for status connections
+    private static final AttributeKey<Version> STATUS_VERSION = AttributeKey.valueOf("limbo_status_version");
+
+    private static final int HANDSHAKE_ID = 0x00;
+    private static final int STATUS_REQUEST_ID = 0x00;
+    private static final int STATUS_PING_ID = 0x01;
+    private static final int STATUS_PING_LENGTH = 9;
+
+    private final LimboServer server;
+
+    public HandshakeHandler(LimboServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ByteBuf frame = (ByteBuf) msg;
+        boolean forward = false;
+
+        try {
+            if (ctx.channel().hasAttr(STATUS_VERSION)) {
+                handleStatus(ctx, frame);
+            } else {
+                forward = handleHandshake(ctx, frame);
+            }
+        } catch (Exception e) {
+            if (Log.isDebug()) {
+                Log.debug("Invalid handshake from %s: %s", ctx.channel().remoteAddress(), e.toString());
+            }
+            ctx.close();
+        } finally {
+            if (!forward) {
+                ReferenceCountUtil.release(frame);
+            }
+        }
+
+        if (forward) {
+            ctx.pipeline().remove(this);
+            ctx.fireChannelRead(frame);
+        }
+    }
+
+    /**
+     * @return True if client goes to login, so the handshake frame should be passed to the full pipeline
+     */
+    private boolean handleHandshake(ChannelHandlerContext ctx, ByteBuf frame) {
+        ByteMessage msg = new ByteMessage(frame.duplicate());
+
+        if (msg.readVarInt() != HANDSHAKE_ID) {
+            ctx.close();
+            return false;
+        }
+
+        int protocol = msg.readVarInt();
+        msg.skipBytes(msg.readVarInt()); // Host
+        msg.skipBytes(2); // Port
+        State nextState = State.getById(msg.readVarInt());
+
+        if (nextState == State.STATUS) {
+            Version version = Version.of(protocol);
+
+            if (Log.isDebug()) {
+                Log.debug("Pinged from %s [%s]", ctx.channel().remoteAddress(), version);
+            }
+
+            ctx.channel().attr(STATUS_VERSION).set(version);
+            return false;
+        }
+
+        if (nextState == State.LOGIN) {
+            initLoginPipeline(ctx);
+            return true;
+        }
+
+        ctx.close();
+        return false;
+    }
+
+    private void handleStatus(ChannelHandlerContext ctx, ByteBuf frame) {
+        int packetId = frame.getUnsignedByte(frame.readerIndex());
+
+        if (packetId == STATUS_REQUEST_ID && frame.readableBytes() == 1) {
+            // Client may request status only once
+            Version version = ctx.channel().attr(STATUS_VERSION).getAndSet(null);
+            ByteBuf response = version != null ? server.getStatusFrames().getFrame(version) : null;
+
+            if (response != null) {
+                ctx.writeAndFlush(response.duplicate(), ctx.voidPromise());
+                return;
+            }
+        } else if (packetId == STATUS_PING_ID && frame.readableBytes() == STATUS_PING_LENGTH) {
+            // Ping is answered with the same payload
+            ByteBuf pong = ctx.alloc().ioBuffer(1 + STATUS_PING_LENGTH);
+            pong.writeByte(STATUS_PING_LENGTH);
+            pong.writeBytes(frame, frame.readerIndex(), STATUS_PING_LENGTH);
+            ctx.writeAndFlush(pong).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
+        ctx.close();
+    }
+
+    private void initLoginPipeline(ChannelHandlerContext ctx) {
+        ChannelPipeline pipeline = ctx.pipeline();
+        PacketDecoder decoder = new PacketDecoder(server.getMetrics());
+        PacketEncoder encoder = new PacketEncoder(server.getMetrics());
+        ClientConnection connection = new ClientConnection(ctx.channel(), server, decoder, encoder);
+        String last = ctx.name();
+
+        pipeline.addAfter(last, "frame_encoder", server.getChannelHandlers().getFrameEncoder());
+        last = "frame_encoder";
+
+        // Limits are enabled on startup only, since their clock isn't ticking otherwise
+        if (server.getTrafficLimits().isRunning()) {
+            pipeline.addAfter(last, "traffic_limit", new ChannelTrafficHandler(server.getTrafficLimits()));
+            last = "traffic_limit";
+        }
+
+        pipeline.addAfter(last, "decoder", decoder);
+        pipeline.addAfter("decoder", "encoder", encoder);
+        pipeline.addAfter("encoder", "handler", connection);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.protocol.PacketSnapshot;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * JoinPlan holds the packets sequence sent to a client on join, composed once per snapshot set.
+ * All clients of the same version receive identical bytes, so frames of join packets
+ * are joined into few read-only chunks per version and phase. Chunks are about the size
+ * of the low write water mark, so they can be streamed to slow clients as their queue drains.
+ * If compression is enabled, the same sequences are also composed of compressed frames.
+ * Versions are composed on first use, unless they were composed in advance by {@link #create}
+ */
+public final class JoinPlan {
+
+    private static final Version[] VERSIONS = Version.values();
+
+    private final PacketSnapshots snapshots;
+    private final AtomicReferenceArray<Composed> versions = new AtomicReferenceArray<>(VERSIONS.length);
+    private final int chunkSize;
+
+    private JoinPlan(PacketSnapshots snapshots, int chunkSize) {
+        this.snapshots = snapshots;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param version Client's version
+     * @param compressed Whether connection uses compression
+     * @return Chunks of frames sent in configuration state or null if version has no configuration state
+     */
+    public ByteBuf[] getConfiguration(Version version, boolean compressed) {
+        Composed composed = getComposed(version);
+        if (composed == null) return null;
+        return compressed ? composed.compressedConfiguration : composed.configuration;
+    }
+
+    /**
+     * @param version Client's version
+     * @param compressed Whether connection uses compression
+     * @return Chunks of frames sent on player spawn
+     */
+    public ByteBuf[] getPlay(Version version, boolean compressed) {
+        Composed composed = getComposed(version);
+        if (composed == null) return null;
+        return compressed ? composed.compressedPlay : composed.play;
+    }
+
+    private Composed getComposed(Version version) {
+        if (!version.isSupported()) return null;
+
+        Composed composed = versions.get(version.ordinal());
+
+        if (composed == null) {
+            // Racing threads compose identical chunks, the first published one is kept
+            versions.compareAndSet(version.ordinal(), null, compose(version));
+            composed = versions.get(version.ordinal());
+        }
+
+        return composed;
+    }
+
+    /**
+     * Create join plan and compose all supported versions,
+     * or only prewarmed versions if snapshots are materialized lazily
+     */
+    public static JoinPlan create(PacketSnapshots snapshots) {
+        LimboConfig config = snapshots.getConfig();
+        JoinPlan plan = new JoinPlan(snapshots, Math.max(1024, config.getWriteBufferLowWaterMark()));
+        Collection<Version> versions = config.isUseLazySnapshots()
+                ? config.getPrewarmVersions()
+                : Arrays.asList(VERSIONS);
+
+        for (Version version : versions) {
+            plan.getComposed(version);
+        }
+
+        return plan;
+    }
+
+    private Composed compose(Version version) {
+        List<PacketSnapshot> playPackets = getPlayPackets(snapshots, version);
+        List<PacketSnapshot> configurationPackets = version.moreOrEqual(Version.V1_20_2)
+                ? getConfigurationPackets(snapshots, version)
+                : null;
+        boolean compression = snapshots.getConfig().isUseCompression() && version.moreOrEqual(Version.V1_8);
+        Composed composed = new Composed();
+
+        if (configurationPackets != null) {
+            composed.configuration = compose(State.CONFIGURATION, version, configurationPackets, false);
+
+            if (compression) {
+                composed.compressedConfiguration = compose(State.CONFIGURATION, version,
+                        configurationPackets, true);
+            }
+        }
+
+        composed.play = compose(State.PLAY, version, playPackets, false);
+
+        if (compression) {
+            composed.compressedPlay = compose(State.PLAY, version, playPackets, true);
+        }
+
+        return composed;
+    }
+
+    private static List<PacketSnapshot> getConfigurationPackets(PacketSnapshots snapshots, Version version) {
+        List<PacketSnapshot> packets = new ArrayList<>();
+
+        if (snapshots.getPluginMessage() != null)
+            packets.add(snapshots.getPluginMessage());
+
+        if (version.moreOrEqual(Version.V1_20_5)) {
+            packets.addAll(snapshots.getRegistriesData());
+        } else {
+            packets.add(snapshots.getRegistryData());
+        }
+
+        packets.add(snapshots.getFinishConfiguration());
+
+        return packets;
+    }
+
+    private static List<PacketSnapshot> getPlayPackets(PacketSnapshots snapshots, Version version) {
+        List<PacketSnapshot> packets = new ArrayList<>();
+
+        packets.add(snapshots.getJoinGame());
+        packets.add(snapshots.getPlayerAbilities());
+
+        if (version.less(Version.V1_9)) {
+            packets.add(snapshots.getPlayerPosAndLookLegacy());
+        } else {
+            packets.add(snapshots.getPlayerPosAndLook());
+        }
+
+        if (version.moreOrEqual(Version.V1_19_3))
+            packets.add(snapshots.getSpawnPosition());
+
+        if (snapshots.getConfig().isUsePlayerList() || version.equals(Version.V1_16_4))
+            packets.add(snapshots.getPlayerInfo());
+
+        if (version.moreOrEqual(Version.V1_13)) {
+            packets.add(snapshots.getDeclareCommands());
+
+            if (snapshots.getPluginMessage() != null)
+                packets.add(snapshots.getPluginMessage());
+        }
+
+        if (snapshots.getBossBar() != null && version.moreOrEqual(Version.V1_9))
+            packets.add(snapshots.getBossBar());
+
+        if (snapshots.getJoinMessage() != null)
+            packets.add(snapshots.getJoinMessage());
+
+        if (snapshots.getTitleTitle() != null && version.moreOrEqual(Version.V1_8)) {
+            if (version.moreOrEqual(Version.V1_17)) {
+                packets.add(snapshots.getTitleTitle());
+                packets.add(snapshots.getTitleSubtitle());
+                packets.add(snapshots.getTitleTimes());
+            } else {
+                packets.add(snapshots.getTitleLegacyTitle());
+                packets.add(snapshots.getTitleLegacySubtitle());
+                packets.add(snapshots.getTitleLegacyTimes());
+            }
+        }
+
+        if (snapshots.getHeaderAndFooter() != null && version.moreOrEqual(Version.V1_8))
+            packets.add(snapshots.getHeaderAndFooter());
+
+        if (version.moreOrEqual(Version.V1_20_3)) {
+            packets.add(snapshots.getStartWaitingChunks());
+            packets.addAll(snapshots.getEmptyChunks());
+        }
+
+        return packets;
+    }
+
+    private ByteBuf[] compose(State state, Version version, List<PacketSnapshot> packets, boolean compressed) {
+        List<ByteBuf> chunks = new ArrayList<>();
+        List<ByteBuf> frames = new ArrayList<>();
+        int size = 0;
+
+        for (PacketSnapshot packet : packets) {
+            ByteBuf frame = compressed
+                    ? packet.getCompressedFrame(state, version)
+                    : packet.getFrame(state, version);
+
+            if (frame == null) {
+                Log.warning("Undefined packet %s for version %s in %s state", packet, version, state);
+                continue;
+            }
+
+            if (!frames.isEmpty() && size + frame.readableBytes() > chunkSize) {
+                chunks.add(join(frames));
+                frames.clear();
+                size = 0;
+            }
+
+            frames.add(frame);
+            size += frame.readableBytes();
+        }
+
+        if (!frames.isEmpty()) {
+            chunks.add(join(frames));
+        }
+
+        return chunks.toArray(new ByteBuf[0]);
+    }
+
+    private static ByteBuf join(List<ByteBuf> frames) {
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedUnmodifiableBuffer(frames.toArray(new ByteBuf[0])));
+    }
+
+    private static final class Composed {
+        private ByteBuf[] configuration;
+        private ByteBuf[] play;
+        private ByteBuf[] compressedConfiguration;
+        private ByteBuf[] compressedPlay;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.protocol.packets.play.PacketKeepAlive;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pre-encoded keepalive frames for each version. Sending a keepalive copies the template
+ * and patches the id bytes at the end of the frame, so no packet is encoded per player.
+ * Ids for versions which encode them as VarInt are kept in [2^21, 2^28),
+ * so they always take 4 bytes and the frame length never changes
+ */
+public final class KeepAliveFrames {
+
+    private static final Version[] VERSIONS = Version.values();
+    private static final int MIN_VARINT_ID = 1 << 21;
+    private static final int MAX_VARINT_ID = 1 << 28;
+
+    private final byte[][] frames = new byte[VERSIONS.length][];
+    private final byte[][] compressedFrames = new byte[VERSIONS.length][];
+
+    private KeepAliveFrames() { }
+
+    /**
+     * Create a new frame with the given id
+     * @param alloc Allocator of the channel
+     * @param version Client's version
+     * @param compressed Whether connection uses compression
+     * @param id Keepalive id, created by {@link #nextId(Version)}
+     * @return Frame ready to write bypassing encoders, or null if there is no template for this version
+     */
+    public ByteBuf newFrame(ByteBufAllocator alloc, Version version, boolean compressed, long id) {
+        byte[] template = (compressed ? compressedFrames : frames)[version.ordinal()];
+
+        if (template == null) return null;
+
+        ByteBuf frame = alloc.ioBuffer(template.length);
+        frame.writeBytes(template);
+
+        int offset = template.length - getIdSize(version);
+
+        if (version.moreOrEqual(Version.V1_12_2)) {
+            frame.setLong(offset, id);
+        } else if (version.moreOrEqual(Version.V1_8)) {
+            frame.setByte(offset, (int) (id & 0x7F) | 0x80);
+            frame.setByte(offset + 1, (int) ((id >>> 7) & 0x7F) | 0x80);
+            frame.setByte(offset + 2, (int) ((id >>> 14) & 0x7F) | 0x80);
+            frame.setByte(offset + 3, (int) ((id >>> 21) & 0x7F));
+        } else {
+            frame.setInt(offset, (int) id);
+        }
+
+        return frame;
+    }
+
+    /**
+     * @param version Client's version
+     * @return Random keepalive id which fits the template of this version
+     */
+    public static long nextId(Version version) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (version.moreOrEqual(Version.V1_12_2)) {
+            return random.nextLong();
+        } else if (version.moreOrEqual(Version.V1_8)) {
+            return random.nextInt(MIN_VARINT_ID, MAX_VARINT_ID);
+        } else {
+            return random.nextInt();
+        }
+    }
+
+    public static KeepAliveFrames create(LimboConfig config) {
+        KeepAliveFrames keepAlive = new KeepAliveFrames();
+
+        for (Version version : VERSIONS) {
+            if (!version.isSupported()) continue;
+
+            State.PacketRegistry registry = State.PLAY.clientBound.getRegistry(version);
+            int packetId = registry != null ? registry.getPacketId(PacketKeepAlive.class) : -1;
+
+            if (packetId == -1) continue;
+
+            keepAlive.frames[version.ordinal()] = createFrame(version, packetId, -1);
+
+            if (config.isUseCompression() && version.moreOrEqual(Version.V1_8)) {
+                keepAlive.compressedFrames[version.ordinal()] = createFrame(version, packetId,
+                        config.getCompressionThreshold());
+            }
+        }
+
+        return keepAlive;
+    }
+
+    /**
+     * @param threshold Compression threshold or -1 for uncompressed frame
+     * @return Frame with zeroed id or null if packet should be deflated with such threshold
+     */
+    private static byte[] createFrame(Version version, int packetId, int threshold) {
+        int length = ByteMessage.getVarIntSize(packetId) + getIdSize(version);
+
+        if (threshold >= 0 && length >= threshold) return null;
+
+        ByteMessage msg = new ByteMessage(Unpooled.buffer(length + 6));
+
+        try {
+            if (threshold >= 0) {
+                msg.writeVarInt(length + 1);
+                msg.writeVarInt(0); // Not compressed
+            } else {
+                msg.writeVarInt(length);
+            }
+
+            msg.writeVarInt(packetId);
+            msg.writeZero(getIdSize(version));
+
+            return msg.toByteArray();
+        } finally {
+            msg.release();
+        }
+    }
+
+    private static int getIdSize(Version version) {
+        if (version.moreOrEqual(Version.V1_12_2)) return Long.BYTES;
+        return Integer.BYTES; // Int for 1.7 and 4 bytes VarInt for 1.8+
+    }
+}
@@ -17,14 +17,17 @@
 
 package ua.nanit.limbo.connection;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import ua.nanit.limbo.LimboConstants;
+import ua.nanit.limbo.metrics.LoginFailure;
 import ua.nanit.limbo.protocol.packets.PacketHandshake;
 import ua.nanit.limbo.protocol.packets.configuration.PacketFinishConfiguration;
 import ua.nanit.limbo.protocol.packets.login.PacketLoginAcknowledged;
 import ua.nanit.limbo.protocol.packets.login.PacketLoginPluginRequest;
 import ua.nanit.limbo.protocol.packets.login.PacketLoginPluginResponse;
 import ua.nanit.limbo.protocol.packets.login.PacketLoginStart;
+import ua.nanit.limbo.protocol.packets.play.PacketKeepAlive;
 import ua.nanit.limbo.protocol.packets.status.PacketStatusPing;
 import ua.nanit.limbo.protocol.packets.status.PacketStatusRequest;
 import ua.nanit.limbo.protocol.packets.status.PacketStatusResponse;
@@ -49,24 +52,30 @@ public class PacketHandler {
         Log.debug("Pinged from %s [%s]", conn.getAddress(),
                 conn.getClientVersion().toString());
 
-        if (server.getConfig().getInfoForwarding().isLegacy()) {
+        if (conn.getConfig().getInfoForwarding().isLegacy()) {
             String[] split = packet.getHost().split("\00");
 
             if (split.length == 3 || split.length == 4) {
                 conn.setAddress(split[1]);
                 conn.getGameProfile().setUuid(UuidUtil.fromString(split[2]));
             } else {
-                conn.disconnectLogin("You've enabled player info forwarding. You need to connect with proxy");
+                conn.disconnectLogin("You've enabled player info forwarding. You need to connect with proxy", LoginFailure.FORWARDING_REQUIRED);
             }
-        } else if (server.getConfig().getInfoForwarding().isBungeeGuard()) {
+        } else if (conn.getConfig().getInfoForwarding().isBungeeGuard()) {
             if (!conn.checkBungeeGuardHandshake(packet.getHost())) {
-                conn.disconnectLogin("Invalid BungeeGuard token or handshake format");
+                conn.disconnectLogin("Invalid BungeeGuard token or handshake format", LoginFailure.INVALID_FORWARDING);
             }
         }
     }
 
     public void handle(ClientConnection conn, PacketStatusRequest packet) {
-        conn.sendPacket(new PacketStatusResponse(server));
+        ByteBuf frame = server.getStatusFrames().getFrame(conn.getClientVersion());
+
+        if (frame != null) {
+            conn.writeFrames(frame, true);
+        } else {
+            conn.sendPacket(new PacketStatusResponse(server));
+        }
     }
 
     public void handle(ClientConnection conn, PacketStatusPing packet) {
@@ -74,18 +83,18 @@ public class PacketHandler {
     }
 
     public void handle(ClientConnection conn, PacketLoginStart packet) {
-        if (server.getConfig().getMaxPlayers() > 0 &&
-                server.getConnections().getCount() >= server.getConfig().getMaxPlayers()) {
-            conn.disconnectLogin("Too many players connected");
+        if (conn.getConfig().getMaxPlayers() > 0 &&
+                server.getConnections().getCount() >= conn.getConfig().getMaxPlayers()) {
+            conn.disconnectLogin("Too many players connected", LoginFailure.SERVER_FULL);
             return;
         }
 
         if (!conn.getClientVersion().isSupported()) {
-            conn.disconnectLogin("Unsupported client version");
+            conn.disconnectLogin("Unsupported client version", LoginFailure.UNSUPPORTED_VERSION);
             return;
         }
 
-        if (server.getConfig().getInfoForwarding().isModern()) {
+        if (conn.getConfig().getInfoForwarding().isModern()) {
             int loginId = ThreadLocalRandom.current().nextInt(0, Integer.MAX_VALUE);
             PacketLoginPluginRequest request = new PacketLoginPluginRequest();
 
@@ -98,7 +107,7 @@ public class PacketHandler {
             return;
         }
 
-        if (!server.getConfig().getInfoForwarding().isModern()) {
+        if (!conn.getConfig().getInfoForwarding().isModern()) {
             conn.getGameProfile().setUsername(packet.getUsername());
             conn.getGameProfile().setUuid(UuidUtil.getOfflineModeUuid(packet.getUsername()));
         }
@@ -107,16 +116,16 @@ public class PacketHandler {
     }
 
     public void handle(ClientConnection conn, PacketLoginPluginResponse packet) {
-        if (server.getConfig().getInfoForwarding().isModern()
+        if (conn.getConfig().getInfoForwarding().isModern()
                 && packet.getMessageId() == conn.getVelocityLoginMessageId()) {
 
             if (!packet.isSuccessful() || packet.getData() == null) {
-                conn.disconnectLogin("You need to connect with Velocity");
+                conn.disconnectLogin("You need to connect with Velocity", LoginFailure.FORWARDING_REQUIRED);
                 return;
             }
 
             if (!conn.checkVelocityKeyIntegrity(packet.getData())) {
-                conn.disconnectLogin("Can't verify forwarded player info");
+                conn.disconnectLogin("Can't verify forwarded player info", LoginFailure.INVALID_FORWARDING);
                 return;
             }
 
@@ -137,4 +146,8 @@ public class PacketHandler {
         conn.spawnPlayer();
     }
 
+    public void handle(ClientConnection conn, PacketKeepAlive packet) {
+        conn.onKeepAliveReceived(packet.getId());
+    }
+
 }
@@ -21,73 +21,237 @@ import net.kyori.adventure.nbt.BinaryTag;
 import net.kyori.adventure.nbt.CompoundBinaryTag;
 import net.kyori.adventure.nbt.ListBinaryTag;
 import ua.nanit.limbo.LimboConstants;
+import ua.nanit.limbo.configuration.LimboConfig;
 import ua.nanit.limbo.protocol.PacketSnapshot;
+import ua.nanit.limbo.protocol.SnapshotArena;
+import ua.nanit.limbo.protocol.registry.Version;
 import ua.nanit.limbo.protocol.packets.configuration.PacketFinishConfiguration;
 import ua.nanit.limbo.protocol.packets.configuration.PacketRegistryData;
 import ua.nanit.limbo.protocol.packets.login.PacketLoginSuccess;
+import ua.nanit.limbo.protocol.packets.login.PacketSetCompression;
 import ua.nanit.limbo.protocol.packets.play.*;
-import ua.nanit.limbo.server.LimboServer;
+import ua.nanit.limbo.server.Log;
 import ua.nanit.limbo.server.data.Title;
 import ua.nanit.limbo.util.NbtMessageUtil;
 import ua.nanit.limbo.util.UuidUtil;
 import ua.nanit.limbo.world.Dimension;
+import ua.nanit.limbo.world.DimensionRegistry;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ThreadLocalRandom;
-
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Immutable set of packet snapshots together with the configuration and dimension registry
+ * they were built from. The current set is published by the server through a single volatile
+ * field and replaced as a whole on reload, so settings and snapshots are always seen together.
+ * Connections keep the set they started joining with, so they never mix packets of two sets
+ */
 public final class PacketSnapshots {
 
-    public static PacketSnapshot PACKET_LOGIN_SUCCESS;
-    public static PacketSnapshot PACKET_JOIN_GAME;
-    public static PacketSnapshot PACKET_SPAWN_POSITION;
-    public static PacketSnapshot PACKET_PLUGIN_MESSAGE;
-    public static PacketSnapshot PACKET_PLAYER_ABILITIES;
-    public static PacketSnapshot PACKET_PLAYER_INFO;
-    public static PacketSnapshot PACKET_DECLARE_COMMANDS;
-    public static PacketSnapshot PACKET_JOIN_MESSAGE;
-    public static PacketSnapshot PACKET_BOSS_BAR;
-    public static PacketSnapshot PACKET_HEADER_AND_FOOTER;
-
-    public static PacketSnapshot PACKET_PLAYER_POS_AND_LOOK_LEGACY;
+    private PacketSnapshot loginSuccess;
+    private PacketSnapshot setCompression;
+    private PacketSnapshot joinGame;
+    private PacketSnapshot spawnPosition;
+    private PacketSnapshot pluginMessage;
+    private PacketSnapshot playerAbilities;
+    private PacketSnapshot playerInfo;
+    private PacketSnapshot declareCommands;
+    private PacketSnapshot joinMessage;
+    private PacketSnapshot bossBar;
+    private PacketSnapshot headerAndFooter;
+
+    private PacketSnapshot playerPosAndLookLegacy;
     // For 1.19 we need to spawn player outside the world to avoid stuck in terrain loading
-    public static PacketSnapshot PACKET_PLAYER_POS_AND_LOOK;
+    private PacketSnapshot playerPosAndLook;
+
+    private PacketSnapshot titleTitle;
+    private PacketSnapshot titleSubtitle;
+    private PacketSnapshot titleTimes;
+
+    private PacketSnapshot titleLegacyTitle;
+    private PacketSnapshot titleLegacySubtitle;
+    private PacketSnapshot titleLegacyTimes;
+
+    private PacketSnapshot registryData;
+    private List<PacketSnapshot> registriesData;
+    private PacketSnapshot finishConfiguration;
+
+    private List<PacketSnapshot> emptyChunks;
+    private PacketSnapshot startWaitingChunks;
+
+    private final LimboConfig config;
+    private final DimensionRegistry dimensionRegistry;
+    private final ChannelHandlers channelHandlers;
+    private JoinPlan joinPlan;
+    private KeepAliveFrames keepAliveFrames;
+    private SnapshotArena arena;
+
+    private PacketSnapshots(LimboConfig config, DimensionRegistry dimensionRegistry, ChannelHandlers channelHandlers) {
+        this.config = config;
+        this.dimensionRegistry = dimensionRegistry;
+        this.channelHandlers = channelHandlers;
+    }
 
-    public static PacketSnapshot PACKET_TITLE_TITLE;
-    public static PacketSnapshot PACKET_TITLE_SUBTITLE;
-    public static PacketSnapshot PACKET_TITLE_TIMES;
+    public LimboConfig getConfig() {
+        return config;
+    }
 
-    public static PacketSnapshot PACKET_TITLE_LEGACY_TITLE;
-    public static PacketSnapshot PACKET_TITLE_LEGACY_SUBTITLE;
-    public static PacketSnapshot PACKET_TITLE_LEGACY_TIMES;
+    public DimensionRegistry getDimensionRegistry() {
+        return dimensionRegistry;
+    }
 
-    public static PacketSnapshot PACKET_REGISTRY_DATA;
-    public static List<PacketSnapshot> PACKETS_REGISTRY_DATA;
-    public static PacketSnapshot PACKET_FINISH_CONFIGURATION;
+    public ChannelHandlers getChannelHandlers() {
+        return channelHandlers;
+    }
 
-    public static List<PacketSnapshot> PACKETS_EMPTY_CHUNKS;
-    public static PacketSnapshot PACKET_START_WAITING_CHUNKS;
+    public PacketSnapshot getLoginSuccess() {
+        return loginSuccess;
+    }
 
-    private PacketSnapshots() { }
+    public PacketSnapshot getSetCompression() {
+        return setCompression;
+    }
 
-    public static void initPackets(LimboServer server) {
-        final String username = server.getConfig().getPingData().getVersion();
+    public PacketSnapshot getJoinGame() {
+        return joinGame;
+    }
+
+    public PacketSnapshot getSpawnPosition() {
+        return spawnPosition;
+    }
+
+    public PacketSnapshot getPluginMessage() {
+        return pluginMessage;
+    }
+
+    public PacketSnapshot getPlayerAbilities() {
+        return playerAbilities;
+    }
+
+    public PacketSnapshot getPlayerInfo() {
+        return playerInfo;
+    }
+
+    public PacketSnapshot getDeclareCommands() {
+        return declareCommands;
+    }
+
+    public PacketSnapshot getJoinMessage() {
+        return joinMessage;
+    }
+
+    public PacketSnapshot getBossBar() {
+        return bossBar;
+    }
+
+    public PacketSnapshot getHeaderAndFooter() {
+        return headerAndFooter;
+    }
+
+    public PacketSnapshot getPlayerPosAndLookLegacy() {
+        return playerPosAndLookLegacy;
+    }
+
+    public PacketSnapshot getPlayerPosAndLook() {
+        return playerPosAndLook;
+    }
+
+    public PacketSnapshot getTitleTitle() {
+        return titleTitle;
+    }
+
+    public PacketSnapshot getTitleSubtitle() {
+        return titleSubtitle;
+    }
+
+    public PacketSnapshot getTitleTimes() {
+        return titleTimes;
+    }
+
+    public PacketSnapshot getTitleLegacyTitle() {
+        return titleLegacyTitle;
+    }
+
+    public PacketSnapshot getTitleLegacySubtitle() {
+        return titleLegacySubtitle;
+    }
+
+    public PacketSnapshot getTitleLegacyTimes() {
+        return titleLegacyTimes;
+    }
+
+    public PacketSnapshot getRegistryData() {
+        return registryData;
+    }
+
+    public List<PacketSnapshot> getRegistriesData() {
+        return registriesData;
+    }
+
+    public PacketSnapshot getFinishConfiguration() {
+        return finishConfiguration;
+    }
+
+    public List<PacketSnapshot> getEmptyChunks() {
+        return emptyChunks;
+    }
+
+    public PacketSnapshot getStartWaitingChunks() {
+        return startWaitingChunks;
+    }
+
+    public JoinPlan getJoinPlan() {
+        return joinPlan;
+    }
+
+    public KeepAliveFrames getKeepAliveFrames() {
+        return keepAliveFrames;
+    }
+
+    public SnapshotArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Build the full set of snapshots. Takes a while, so it shouldn't be called on event loops
+     * @param config Configuration which snapshots are built from
+     * @param dimensionRegistry Loaded dimension registry of the configured dimension
+     * @param channelHandlers Shared handlers which match the compression settings of the config
+     */
+    public static PacketSnapshots create(LimboConfig config, DimensionRegistry dimensionRegistry,
+                                         ChannelHandlers channelHandlers) {
+        PacketSnapshots snapshots = new PacketSnapshots(config, dimensionRegistry, channelHandlers);
+        snapshots.init();
+        return snapshots;
+    }
+
+    private void init() {
+        final String username = config.getPingData().getVersion();
         final UUID uuid = UuidUtil.getOfflineModeUuid(username);
+        final SnapshotArena arena = new SnapshotArena();
+        this.arena = arena;
 
         PacketLoginSuccess loginSuccess = new PacketLoginSuccess();
         loginSuccess.setUsername(username);
         loginSuccess.setUuid(uuid);
 
         PacketJoinGame joinGame = new PacketJoinGame();
-        String worldName = "minecraft:" + server.getConfig().getDimensionType().toLowerCase();
+        String worldName = "minecraft:" + config.getDimensionType().toLowerCase();
         joinGame.setEntityId(0);
         joinGame.setEnableRespawnScreen(true);
         joinGame.setFlat(false);
-        joinGame.setGameMode(server.getConfig().getGameMode());
+        joinGame.setGameMode(config.getGameMode());
         joinGame.setHardcore(false);
-        joinGame.setMaxPlayers(server.getConfig().getMaxPlayers());
+        joinGame.setMaxPlayers(config.getMaxPlayers());
         joinGame.setPreviousGameMode(-1);
         joinGame.setReducedDebugInfo(true);
         joinGame.setDebug(false);
@@ -95,7 +259,7 @@ public final class PacketSnapshots {
         joinGame.setWorldName(worldName);
         joinGame.setWorldNames(worldName);
         joinGame.setHashedSeed(0);
-        joinGame.setDimensionRegistry(server.getDimensionRegistry());
+        joinGame.setDimensionRegistry(dimensionRegistry);
 
         PacketPlayerAbilities playerAbilities = new PacketPlayerAbilities();
         playerAbilities.setFlyingSpeed(0.0F);
@@ -116,51 +280,51 @@ public final class PacketSnapshots {
         declareCommands.setCommands(Collections.emptyList());
 
         PacketPlayerInfo info = new PacketPlayerInfo();
-        info.setUsername(server.getConfig().getPlayerListUsername());
-        info.setGameMode(server.getConfig().getGameMode());
+        info.setUsername(config.getPlayerListUsername());
+        info.setGameMode(config.getGameMode());
         info.setUuid(uuid);
 
-        PACKET_LOGIN_SUCCESS = PacketSnapshot.of(loginSuccess);
-        PACKET_JOIN_GAME = PacketSnapshot.of(joinGame);
-        PACKET_PLAYER_POS_AND_LOOK_LEGACY = PacketSnapshot.of(positionAndLookLegacy);
-        PACKET_PLAYER_POS_AND_LOOK = PacketSnapshot.of(positionAndLook);
-        PACKET_SPAWN_POSITION = PacketSnapshot.of(packetSpawnPosition);
-        PACKET_PLAYER_ABILITIES = PacketSnapshot.of(playerAbilities);
-        PACKET_PLAYER_INFO = PacketSnapshot.of(info);
+        this.loginSuccess = new PacketSnapshot(loginSuccess, arena);
+        this.joinGame = new PacketSnapshot(joinGame, arena);
+        playerPosAndLookLegacy = new PacketSnapshot(positionAndLookLegacy, arena);
+        playerPosAndLook = new PacketSnapshot(positionAndLook, arena);
+        spawnPosition = new PacketSnapshot(packetSpawnPosition, arena);
+        this.playerAbilities = new PacketSnapshot(playerAbilities, arena);
+        playerInfo = new PacketSnapshot(info, arena);
 
-        PACKET_DECLARE_COMMANDS = PacketSnapshot.of(declareCommands);
+        this.declareCommands = new PacketSnapshot(declareCommands, arena);
 
-        if (server.getConfig().isUseHeaderAndFooter()) {
+        if (config.isUseHeaderAndFooter()) {
             PacketPlayerListHeader header = new PacketPlayerListHeader();
-            header.setHeader(NbtMessageUtil.create(server.getConfig().getPlayerListHeader()));
-            header.setFooter(NbtMessageUtil.create(server.getConfig().getPlayerListFooter()));
-            PACKET_HEADER_AND_FOOTER = PacketSnapshot.of(header);
+            header.setHeader(NbtMessageUtil.create(config.getPlayerListHeader()));
+            header.setFooter(NbtMessageUtil.create(config.getPlayerListFooter()));
+            headerAndFooter = new PacketSnapshot(header, arena);
         }
 
-        if (server.getConfig().isUseBrandName()){
+        if (config.isUseBrandName()){
             PacketPluginMessage pluginMessage = new PacketPluginMessage();
             pluginMessage.setChannel(LimboConstants.BRAND_CHANNEL);
-            pluginMessage.setMessage(server.getConfig().getBrandName());
-            PACKET_PLUGIN_MESSAGE = PacketSnapshot.of(pluginMessage);
+            pluginMessage.setMessage(config.getBrandName());
+            this.pluginMessage = new PacketSnapshot(pluginMessage, arena);
         }
 
-        if (server.getConfig().isUseJoinMessage()) {
+        if (config.isUseJoinMessage()) {
             PacketChatMessage joinMessage = new PacketChatMessage();
-            joinMessage.setMessage(NbtMessageUtil.create(server.getConfig().getJoinMessage()));
+            joinMessage.setMessage(NbtMessageUtil.create(config.getJoinMessage()));
             joinMessage.setPosition(PacketChatMessage.PositionLegacy.SYSTEM_MESSAGE);
             joinMessage.setSender(UUID.randomUUID());
-            PACKET_JOIN_MESSAGE = PacketSnapshot.of(joinMessage);
+            this.joinMessage = new PacketSnapshot(joinMessage, arena);
         }
 
-        if (server.getConfig().isUseBossBar()) {
+        if (config.isUseBossBar()) {
             PacketBossBar bossBar = new PacketBossBar();
-            bossBar.setBossBar(server.getConfig().getBossBar());
+            bossBar.setBossBar(config.getBossBar());
             bossBar.setUuid(UUID.randomUUID());
-            PACKET_BOSS_BAR = PacketSnapshot.of(bossBar);
+            this.bossBar = new PacketSnapshot(bossBar, arena);
         }
 
-        if (server.getConfig().isUseTitle()) {
-            Title title = server.getConfig().getTitle();
+        if (config.isUseTitle()) {
+            Title title = config.getTitle();
 
             PacketTitleSetTitle packetTitle = new PacketTitleSetTitle();
             PacketTitleSetSubTitle packetSubtitle = new PacketTitleSetSubTitle();
@@ -185,28 +349,28 @@ public final class PacketSnapshots {
             legacyTimes.setTitle(title);
             legacyTimes.setAction(PacketTitleLegacy.Action.SET_TIMES_AND_DISPLAY);
 
-            PACKET_TITLE_TITLE = PacketSnapshot.of(packetTitle);
-            PACKET_TITLE_SUBTITLE = PacketSnapshot.of(packetSubtitle);
-            PACKET_TITLE_TIMES = PacketSnapshot.of(packetTimes);
+            titleTitle = new PacketSnapshot(packetTitle, arena);
+            titleSubtitle = new PacketSnapshot(packetSubtitle, arena);
+            titleTimes = new PacketSnapshot(packetTimes, arena);
 
-            PACKET_TITLE_LEGACY_TITLE = PacketSnapshot.of(legacyTitle);
-            PACKET_TITLE_LEGACY_SUBTITLE = PacketSnapshot.of(legacySubtitle);
-            PACKET_TITLE_LEGACY_TIMES = PacketSnapshot.of(legacyTimes);
+            titleLegacyTitle = new PacketSnapshot(legacyTitle, arena);
+            titleLegacySubtitle = new PacketSnapshot(legacySubtitle, arena);
+            titleLegacyTimes = new PacketSnapshot(legacyTimes, arena);
         }
 
         PacketRegistryData packetRegistryData = new PacketRegistryData();
-        packetRegistryData.setDimensionRegistry(server.getDimensionRegistry());
+        packetRegistryData.setDimensionRegistry(dimensionRegistry);
 
-        PACKET_REGISTRY_DATA = PacketSnapshot.of(packetRegistryData);
+        registryData = new PacketSnapshot(packetRegistryData, arena);
 
-        Dimension dimension1_21 = server.getDimensionRegistry().getDimension_1_21();
+        Dimension dimension1_21 = dimensionRegistry.getDimension_1_21();
         List<PacketSnapshot> packetRegistries = new ArrayList<>();
         CompoundBinaryTag dimensionTag = dimension1_21.getData();
         for (String registryType : dimensionTag.keySet()) {
             CompoundBinaryTag compoundRegistryType = dimensionTag.getCompound(registryType);
 
             PacketRegistryData registryData = new PacketRegistryData();
-            registryData.setDimensionRegistry(server.getDimensionRegistry());
+            registryData.setDimensionRegistry(dimensionRegistry);
 
             ListBinaryTag values = compoundRegistryType.getList("value");
             registryData.setMetadataWriter((message, version) -> {
@@ -225,17 +389,17 @@ public final class PacketSnapshots {
                 }
             });
 
-            packetRegistries.add(PacketSnapshot.of(registryData));
+            packetRegistries.add(new PacketSnapshot(registryData, arena));
         }
 
-        PACKETS_REGISTRY_DATA = packetRegistries;
+        registriesData = packetRegistries;
 
-        PACKET_FINISH_CONFIGURATION = PacketSnapshot.of(new PacketFinishConfiguration());
+        finishConfiguration = new PacketSnapshot(new PacketFinishConfiguration(), arena);
 
         PacketGameEvent packetGameEvent = new PacketGameEvent();
         packetGameEvent.setType((byte) 13); // Waiting for chunks type
         packetGameEvent.setValue(0);
-        PACKET_START_WAITING_CHUNKS = PacketSnapshot.of(packetGameEvent);
+        startWaitingChunks = new PacketSnapshot(packetGameEvent, arena);
 
         int chunkXOffset = (int) 0 >> 4; // Default x position is 0
         int chunkZOffset = (int) 0 >> 4; // Default z position is 0
@@ -249,9 +413,95 @@ public final class PacketSnapshots {
                 packetEmptyChunk.setX(chunkX);
                 packetEmptyChunk.setZ(chunkZ);
 
-                emptyChunks.add(PacketSnapshot.of(packetEmptyChunk));
+                emptyChunks.add(new PacketSnapshot(packetEmptyChunk, arena));
+            }
+        }
+        this.emptyChunks = emptyChunks;
+
+        if (config.isUseCompression()) {
+            PacketSetCompression setCompression = new PacketSetCompression();
+            setCompression.setThreshold(config.getCompressionThreshold());
+            this.setCompression = new PacketSnapshot(setCompression, arena);
+        }
+
+        List<PacketSnapshot> snapshots = getAll();
+
+        if (config.isUseCompression()) {
+            int threshold = config.getCompressionThreshold();
+            int level = config.getCompressionLevel();
+
+            for (PacketSnapshot snapshot : snapshots) {
+                snapshot.enableCompression(threshold, level);
             }
         }
-        PACKETS_EMPTY_CHUNKS = emptyChunks;
+
+        // In lazy mode only the prewarmed versions are encoded here, the rest on first join
+        long start = System.nanoTime();
+
+        if (config.isUseLazySnapshots()) {
+            Collection<Version> prewarm = config.getPrewarmVersions();
+            invokeAll(snapshots, snapshot -> snapshot.encode(prewarm));
+        } else {
+            invokeAll(snapshots, PacketSnapshot::encode);
+        }
+
+        long encoded = System.nanoTime();
+        joinPlan = JoinPlan.create(this);
+        keepAliveFrames = KeepAliveFrames.create(config);
+        long composed = System.nanoTime();
+
+        Log.info("Encoded %d packet snapshots%s: encoding %d ms, join plan %d ms",
+                snapshots.size(), config.isUseLazySnapshots() ? " (lazy)" : "",
+                toMillis(encoded - start), toMillis(composed - encoded));
+    }
+
+    private static void invokeAll(List<PacketSnapshot> snapshots, Consumer<PacketSnapshot> action) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(snapshots.size());
+
+        for (PacketSnapshot snapshot : snapshots) {
+            tasks.add(ForkJoinTask.adapt(() -> action.accept(snapshot)));
+        }
+
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * @return All initialized snapshots
+     */
+    public List<PacketSnapshot> getAll() {
+        List<PacketSnapshot> snapshots = new ArrayList<>(Arrays.asList(
+                loginSuccess,
+                setCompression,
+                joinGame,
+                spawnPosition,
+                pluginMessage,
+                playerAbilities,
+                playerInfo,
+                declareCommands,
+                joinMessage,
+                bossBar,
+                headerAndFooter,
+                playerPosAndLookLegacy,
+                playerPosAndLook,
+                titleTitle,
+                titleSubtitle,
+                titleTimes,
+                titleLegacyTitle,
+                titleLegacySubtitle,
+                titleLegacyTimes,
+                registryData,
+                finishConfiguration,
+                startWaitingChunks
+        ));
+
+        snapshots.addAll(registriesData);
+        snapshots.addAll(emptyChunks);
+        snapshots.removeIf(Objects::isNull);
+
+        return snapshots;
     }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.protocol.packets.status.PacketStatusResponse;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of encoded status responses. Response is built once per reported protocol number
+ * and rebuilt only when the online count crosses a multiple of the granularity
+ * or when cache time expires. Also keeps responses for legacy (pre-1.7) server list pings
+ */
+public final class StatusFrames {
+
+    private static final int LEGACY_KEY = Integer.MIN_VALUE;
+    private static final int LEGACY_OLD_KEY = Integer.MIN_VALUE + 1;
+    // Protocol number reported to legacy clients, so they show the server as incompatible
+    private static final int LEGACY_PROTOCOL = 127;
+
+    private final LimboServer server;
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    public StatusFrames(LimboServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Drop cached responses, so the next pings are answered with the current configuration
+     */
+    public void invalidate() {
+        entries.clear();
+    }
+
+    /**
+     * Get status response frame for the client's version
+     * @param version Client's version
+     * @return Shared frame which can be written bypassing encoders, or null
+     * if status response isn't registered
+     */
+    public ByteBuf getFrame(Version version) {
+        // Unknown versions get response in the latest format. Unless static protocol or forwarding is set,
+        // they are reported the undefined protocol (-1), so client shows the server as incompatible.
+        // Their own protocol number isn't echoed, since it would make cache key controlled by client
+        State.PacketRegistry registry = State.STATUS.clientBound.getRegistry(
+                version.isSupported() ? version : Version.getMax());
+
+        if (registry == null) return null;
+
+        // Response id is the same for all versions, so frames differ only by reported protocol
+        int protocol = PacketStatusResponse.getProtocol(server.getConfig(), version);
+        int online = server.getConnections().getCount();
+        Entry entry = entries.get(protocol);
+
+        if (entry == null || entry.isExpired(online)) {
+            entry = new Entry(createFrame(registry.getPacketId(PacketStatusResponse.class), version), online);
+            entries.put(protocol, entry);
+        }
+
+        return entry.frame;
+    }
+
+    /**
+     * Get response to the legacy server list ping (0xFE)
+     * @param old Whether client is older than 1.4 and expects the oldest response format
+     * @return Shared buffer ready to write to the channel
+     */
+    public ByteBuf getLegacyResponse(boolean old) {
+        int key = old ? LEGACY_OLD_KEY : LEGACY_KEY;
+        int online = server.getConnections().getCount();
+        Entry entry = entries.get(key);
+
+        if (entry == null || entry.isExpired(online)) {
+            entry = new Entry(createLegacyResponse(old, online), online);
+            entries.put(key, entry);
+        }
+
+        return entry.frame;
+    }
+
+    private ByteBuf createFrame(int packetId, Version version) {
+        ByteMessage body = ByteMessage.create();
+        ByteMessage frame = ByteMessage.create();
+
+        try {
+            body.writeVarInt(packetId);
+            new PacketStatusResponse(server).encode(body, version);
+
+            frame.writeVarInt(body.readableBytes());
+            frame.writeBytes(body);
+
+            return wrap(frame.toByteArray());
+        } finally {
+            body.release();
+            frame.release();
+        }
+    }
+
+    private ByteBuf createLegacyResponse(boolean old, int online) {
+        LimboConfig config = server.getConfig();
+        String motd = getPlainText(config.getPingData().getDescription());
+        String response;
+
+        if (old) {
+            response = motd.replace("§", "") + "§" + online + "§" + config.getMaxPlayers();
+        } else {
+            response = "§1\0" + LEGACY_PROTOCOL + "\0" + config.getPingData().getVersion()
+                    + "\0" + motd + "\0" + online + "\0" + config.getMaxPlayers();
+        }
+
+        byte[] chars = response.getBytes(StandardCharsets.UTF_16BE);
+        ByteBuf buf = Unpooled.buffer(3 + chars.length);
+
+        buf.writeByte(0xFF);
+        buf.writeShort(response.length());
+        buf.writeBytes(chars);
+
+        return wrap(buf.array());
+    }
+
+    /**
+     * Cache time and granularity are taken from the current settings, so they follow reloads
+     */
+    private long getBucket(int online) {
+        return online / server.getConfig().getPingData().getOnlineGranularity();
+    }
+
+    private long getCacheTime() {
+        return TimeUnit.MILLISECONDS.toNanos(server.getConfig().getPingData().getCacheTime());
+    }
+
+    private static ByteBuf wrap(byte[] bytes) {
+        // Heap buffer without reference counting, so replaced entries are simply collected by GC
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(bytes).asReadOnly());
+    }
+
+    /**
+     * Convert JSON text component to the plain text. Formatting codes inside text are kept
+     */
+    private static String getPlainText(String json) {
+        try {
+            StringBuilder builder = new StringBuilder();
+            appendText(JsonParser.parseString(json), builder);
+            return builder.toString();
+        } catch (Exception e) {
+            return json;
+        }
+    }
+
+    private static void appendText(JsonElement element, StringBuilder builder) {
+        if (element.isJsonPrimitive()) {
+            builder.append(element.getAsString());
+        } else if (element.isJsonArray()) {
+            for (JsonElement child : element.getAsJsonArray()) {
+                appendText(child, builder);
+            }
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+
+            if (object.has("text")) {
+                builder.append(object.get("text").getAsString());
+            }
+
+            JsonArray extra = object.has("extra") ? object.getAsJsonArray("extra") : null;
+
+            if (extra != null) {
+                appendText(extra, builder);
+            }
+        }
+    }
+
+    private final class Entry {
+
+        private final ByteBuf frame;
+        private final long bucket;
+        private final long createdAt;
+
+        Entry(ByteBuf frame, int online) {
+            this.frame = frame;
+            this.bucket = getBucket(online);
+            this.createdAt = System.nanoTime();
+        }
+
+        boolean isExpired(int online) {
+            return bucket != getBucket(online) || System.nanoTime() - createdAt >= getCacheTime();
+        }
+    }
+}
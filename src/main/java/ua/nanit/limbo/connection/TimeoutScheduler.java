@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ua.nanit.limbo.connection;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.server.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends keepalives and disconnects channels which stopped reading, didn't finish joining
+ * or didn't answer keepalive in time. Each event loop has one hashed timing wheel instead
+ * of scheduled tasks per channel. Reads only update the channel's last read time, and the wheel
+ * checks all deadlines of a channel when its slot is visited. Keepalives due in one tick are
+ * written together and flushed after the sweep. If the channel isn't expired yet,
+ * it is moved to the slot of its nearest deadline
+ */
+public final class TimeoutScheduler {
+
+    private static final AttributeKey<Entry> ENTRY = AttributeKey.valueOf("limbo_timeout");
+
+    private static final int SLOTS = 256;
+    private static final int MASK = SLOTS - 1;
+    private static final long TICK_MILLIS = 100;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+
+    // Replaced on reload. Each wheel reads it once per tick
+    private volatile Timeouts timeouts;
+    private final Map<EventLoop, Wheel> wheels = new ConcurrentHashMap<>();
+    private final Handler handler = new Handler();
+
+    public TimeoutScheduler(LimboConfig config) {
+        this.timeouts = new Timeouts(config);
+    }
+
+    /**
+     * Apply timeouts and keepalive interval of the reloaded settings. Every wheel
+     * moves its entries to the slots of their new deadlines on its own event loop
+     */
+    public void update(LimboConfig config) {
+        timeouts = new Timeouts(config);
+
+        for (Wheel wheel : wheels.values()) {
+            wheel.loop.execute(wheel::rescheduleAll);
+        }
+    }
+
+    /**
+     * @return Shared handler which registers channels and tracks their reads
+     */
+    public ChannelHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Attach player connection to its channel's timeouts, so keepalive and join deadlines are checked.
+     * Must be called from the connection's event loop
+     */
+    void attach(ClientConnection connection) {
+        Entry entry = connection.getChannel().attr(ENTRY).get();
+
+        if (entry != null) {
+            entry.connection = connection;
+        }
+    }
+
+    /**
+     * Start sending keepalives to the joined player, one interval after the first keepalive.
+     * Must be called from the connection's event loop
+     */
+    void startKeepAlive(ClientConnection connection) {
+        Entry entry = connection.getChannel().attr(ENTRY).get();
+
+        if (entry != null) {
+            entry.wheel.startKeepAlive(entry);
+        }
+    }
+
+    private void register(Channel channel) {
+        if (channel.attr(ENTRY).get() != null) return;
+
+        Wheel wheel = wheels.computeIfAbsent(channel.eventLoop(), Wheel::new);
+        Entry entry = new Entry(channel, wheel);
+        channel.attr(ENTRY).set(entry);
+        wheel.add(entry);
+    }
+
+    private void unregister(Channel channel) {
+        Entry entry = channel.attr(ENTRY).getAndSet(null);
+
+        if (entry != null && entry.wheel.remove(entry)) {
+            // Stop ticking on loops without channels
+            entry.wheel.cancel();
+            wheels.remove(channel.eventLoop());
+        }
+    }
+
+    private static long toNanos(long millis) {
+        return millis > 0 ? TimeUnit.MILLISECONDS.toNanos(millis) : -1;
+    }
+
+    private static long min(long deadline, long other) {
+        return deadline == -1 || other < deadline ? other : deadline;
+    }
+
+    @ChannelHandler.Sharable
+    private final class Handler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            register(ctx.channel());
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            unregister(ctx.channel());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            unregister(ctx.channel());
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            Entry entry = ctx.channel().attr(ENTRY).get();
+
+            if (entry != null) {
+                entry.lastRead = entry.wheel.now;
+            }
+
+            super.channelReadComplete(ctx);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Channel channel;
+        private final Wheel wheel;
+        private final long connectedAt;
+        private ClientConnection connection;
+        private long lastRead;
+        // Time in nanos when the next keepalive is due or 0 if player hasn't joined yet
+        private long keepAliveAt;
+
+        // Position in the wheel. Entries of one slot form a doubly linked list
+        private int slot = -1;
+        private Entry prev;
+        private Entry next;
+
+        Entry(Channel channel, Wheel wheel) {
+            this.channel = channel;
+            this.wheel = wheel;
+            this.connectedAt = wheel.now;
+            this.lastRead = wheel.now;
+        }
+    }
+
+    private final class Wheel implements Runnable {
+
+        private final Entry[] slots = new Entry[SLOTS];
+        private final List<Entry> expired = new ArrayList<>();
+        private final List<ClientConnection> keepAlives = new ArrayList<>();
+        private final EventLoop loop;
+        private final ScheduledFuture<?> task;
+        private Timeouts current = timeouts;
+        private long now = System.nanoTime();
+        private int size;
+        private int cursor;
+
+        Wheel(EventLoop loop) {
+            this.loop = loop;
+            this.task = loop.scheduleAtFixedRate(this, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        void add(Entry entry) {
+            size++;
+            schedule(entry, deadline(entry));
+        }
+
+        /**
+         * @return True if the wheel became empty
+         */
+        boolean remove(Entry entry) {
+            unlink(entry);
+            size--;
+            return size == 0;
+        }
+
+        void reschedule(Entry entry) {
+            unlink(entry);
+            schedule(entry, deadline(entry));
+        }
+
+        void startKeepAlive(Entry entry) {
+            if (current.keepAliveInterval > 0) {
+                entry.keepAliveAt = System.nanoTime() + current.keepAliveInterval;
+                reschedule(entry);
+            }
+        }
+
+        /**
+         * Move all entries to the slots of their deadlines under the current timeouts
+         */
+        void rescheduleAll() {
+            current = timeouts;
+            now = System.nanoTime();
+
+            List<Entry> entries = new ArrayList<>(size);
+
+            for (int i = 0; i < SLOTS; i++) {
+                for (Entry entry = slots[i]; entry != null; entry = entry.next) {
+                    entries.add(entry);
+                }
+            }
+
+            for (Entry entry : entries) {
+                unlink(entry);
+                ClientConnection connection = entry.connection;
+
+                if (current.keepAliveInterval <= 0) {
+                    entry.keepAliveAt = 0;
+                } else if (entry.keepAliveAt == 0 && connection != null && connection.isJoined()) {
+                    entry.keepAliveAt = now + current.keepAliveInterval;
+                }
+
+                schedule(entry, deadline(entry));
+            }
+        }
+
+        void cancel() {
+            task.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            current = timeouts;
+            now = System.nanoTime();
+
+            Entry entry = slots[cursor];
+            slots[cursor] = null;
+            cursor = (cursor + 1) & MASK;
+
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = null;
+                entry.next = null;
+                entry.slot = -1;
+
+                long deadline;
+
+                if (entry.keepAliveAt != 0 && entry.keepAliveAt - now <= 0) {
+                    entry.keepAliveAt = current.keepAliveInterval > 0 ? now + current.keepAliveInterval : 0;
+                    deadline = deadline(entry);
+
+                    // Player still waiting for the answer to the previous keepalive is skipped
+                    if (entry.connection.getKeepAliveSentAt() == 0) {
+                        keepAlives.add(entry.connection);
+                        deadline = current.keepAliveTimeout > 0 ? min(deadline, now + current.keepAliveTimeout) : deadline;
+                    }
+                } else {
+                    deadline = deadline(entry);
+                }
+
+                if (deadline != -1 && deadline - now <= 0) {
+                    expired.add(entry);
+                } else {
+                    schedule(entry, deadline);
+                }
+
+                entry = next;
+            }
+
+            // Writing and closing are done after the sweep, so the wheel isn't changed while iterating
+            for (ClientConnection connection : keepAlives) {
+                connection.writeKeepAlive();
+            }
+
+            for (ClientConnection connection : keepAlives) {
+                connection.flush();
+            }
+
+            keepAlives.clear();
+
+            for (Entry expiredEntry : expired) {
+                expire(expiredEntry);
+            }
+
+            expired.clear();
+        }
+
+        /**
+         * @return Nearest time when the entry expires, or -1 if no timeouts apply
+         */
+        private long deadline(Entry entry) {
+            long deadline = -1;
+            ClientConnection connection = entry.connection;
+
+            if (current.readTimeout > 0) {
+                deadline = entry.lastRead + current.readTimeout;
+            }
+
+            if (current.loginTimeout > 0 && (connection == null || !connection.isJoined())) {
+                deadline = min(deadline, entry.connectedAt + current.loginTimeout);
+            }
+
+            if (current.keepAliveTimeout > 0 && connection != null && connection.getKeepAliveSentAt() != 0) {
+                deadline = min(deadline, connection.getKeepAliveSentAt() + current.keepAliveTimeout);
+            }
+
+            if (entry.keepAliveAt != 0) {
+                deadline = min(deadline, entry.keepAliveAt);
+            }
+
+            return deadline;
+        }
+
+        private void schedule(Entry entry, long deadline) {
+            // Entries without deadlines are checked once per wheel turn, since they may get one later
+            long ticks = deadline == -1 ? SLOTS : (deadline - now + TICK_NANOS - 1) / TICK_NANOS;
+            int slot = (cursor + (int) Math.min(Math.max(ticks - 1, 0), MASK)) & MASK;
+            Entry head = slots[slot];
+
+            entry.slot = slot;
+            entry.next = head;
+
+            if (head != null) {
+                head.prev = entry;
+            }
+
+            slots[slot] = entry;
+        }
+
+        private void unlink(Entry entry) {
+            if (entry.slot == -1) return;
+
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                slots[entry.slot] = entry.next;
+            }
+
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+
+            entry.prev = null;
+            entry.next = null;
+            entry.slot = -1;
+        }
+
+        private void expire(Entry entry) {
+            ClientConnection connection = entry.connection;
+
+            if (connection != null) {
+                long sentAt = connection.getKeepAliveSentAt();
+
+                if (current.keepAliveTimeout > 0 && sentAt != 0 && now - sentAt >= current.keepAliveTimeout) {
+                    connection.disconnectTimedOut();
+                    return;
+                }
+
+                if (current.loginTimeout > 0 && !connection.isJoined() && now - entry.connectedAt >= current.loginTimeout) {
+                    connection.disconnectLoginTimedOut();
+                    return;
+                }
+            }
+
+            Log.debug("Connection %s timed out", entry.channel.remoteAddress());
+            entry.channel.close();
+        }
+    }
+
+    private static final class Timeouts {
+
+        private final long readTimeout;
+        private final long loginTimeout;
+        private final long keepAliveInterval;
+        private final long keepAliveTimeout;
+
+        Timeouts(LimboConfig config) {
+            this.readTimeout = toNanos(config.getReadTimeout());
+            this.loginTimeout = toNanos(config.getLoginTimeout());
+            this.keepAliveInterval = toNanos(config.getKeepAliveInterval());
+            this.keepAliveTimeout = toNanos(config.getKeepAliveTimeout());
+        }
+    }
+}
@@ -3,109 +3,162 @@ package ua.nanit.limbo.connection.pipeline;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
 import org.jetbrains.annotations.NotNull;
 import ua.nanit.limbo.server.Log;
 
-import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 public class ChannelTrafficHandler extends ChannelInboundHandlerAdapter {
 
-    private final int maxPacketSize;
-    private final double maxPacketRate;
-    private final PacketBucket packetBucket;
+    private final TrafficLimits limits;
 
-    public ChannelTrafficHandler(int maxPacketSize, double interval, double maxPacketRate) {
-        this.maxPacketSize = maxPacketSize;
-        this.maxPacketRate = maxPacketRate;
-        this.packetBucket = (interval > 0.0 && maxPacketRate > 0.0) ? new PacketBucket(interval * 1000.0, 150) : null;
+    // Remaining budget in 1/1000 of packet and byte. May go below zero while throttled
+    private long packetTokens;
+    private long byteTokens;
+    private long lastRefill;
+    private boolean throttled;
+
+    public ChannelTrafficHandler(TrafficLimits limits) {
+        this.limits = limits;
+        this.packetTokens = Math.max(0, limits.getPacketCapacity());
+        this.byteTokens = Math.max(0, limits.getByteCapacity());
+        this.lastRefill = limits.now();
     }
 
     @Override
     public void channelRead(@NotNull ChannelHandlerContext ctx, @NotNull Object msg) throws Exception {
         if (msg instanceof ByteBuf) {
-            ByteBuf in = (ByteBuf) msg;
-            int bytes = in.readableBytes();
+            int bytes = ((ByteBuf) msg).readableBytes();
 
-            if (maxPacketSize > 0 && bytes > maxPacketSize) {
+            if (limits.getMaxPacketSize() > 0 && bytes > limits.getMaxPacketSize()) {
+                ReferenceCountUtil.release(msg);
                 closeConnection(ctx, "Closed %s due to large packet size (%d bytes)", ctx.channel().remoteAddress(), bytes);
                 return;
             }
 
-            if (packetBucket != null) {
-                packetBucket.incrementPackets(1);
-                if (packetBucket.getCurrentPacketRate() > maxPacketRate) {
-                    closeConnection(ctx, "Closed %s due to many packets sent (%d in the last %.1f seconds)", ctx.channel().remoteAddress(), packetBucket.sum, (packetBucket.intervalTime / 1000.0));
-                    return;
-                }
+            if (!tryAcquire(bytes) && !onLimitExceeded(ctx)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+            if (limits.hasGlobalLimit() && !limits.acquireGlobal(bytes) && !onGlobalLimitExceeded(ctx)) {
+                ReferenceCountUtil.release(msg);
+                return;
             }
         }
 
         super.channelRead(ctx, msg);
     }
 
-    private void closeConnection(ChannelHandlerContext ctx, String reason, Object... args) {
-        ctx.close();
-        Log.info(reason, args);
+    /**
+     * Take one packet of specified size from the channel budget.
+     * In throttle mode packet is counted even if budget is exceeded
+     * @param bytes Size of the packet
+     * @return True if packet is within limits
+     */
+    public boolean tryAcquire(int bytes) {
+        refill();
+
+        long packetCost = limits.getPacketRate() > 0 ? TrafficLimits.UNIT : 0;
+        long byteCost = limits.getByteRate() > 0 ? bytes * TrafficLimits.UNIT : 0;
+        boolean allowed = packetTokens >= packetCost && byteTokens >= byteCost;
+
+        if (allowed || limits.getAction() == TrafficLimits.Action.THROTTLE) {
+            packetTokens -= packetCost;
+            byteTokens -= byteCost;
+        }
+
+        return allowed;
     }
 
-    private static class PacketBucket {
-        private static final double NANOSECONDS_TO_MILLISECONDS = 1.0e-6;
-        private static final int MILLISECONDS_TO_SECONDS = 1000;
-
-        private final double intervalTime;
-        private final double intervalResolution;
-        private final int[] data;
-        private int newestData;
-        private double lastBucketTime;
-        private int sum;
-
-        public PacketBucket(final double intervalTime, final int totalBuckets) {
-            this.intervalTime = intervalTime;
-            this.intervalResolution = intervalTime / totalBuckets;
-            this.data = new int[totalBuckets];
+    private void refill() {
+        long now = limits.now();
+        long elapsed = now - lastRefill;
+
+        if (elapsed <= 0) return;
+
+        lastRefill = now;
+
+        if (limits.getPacketRate() > 0) {
+            packetTokens = Math.min(limits.getPacketCapacity(), packetTokens + elapsed * limits.getPacketRate());
         }
 
-        public void incrementPackets(final int packets) {
-            double timeMs = System.nanoTime() * NANOSECONDS_TO_MILLISECONDS;
-            double timeDelta = timeMs - this.lastBucketTime;
+        if (limits.getByteRate() > 0) {
+            byteTokens = Math.min(limits.getByteCapacity(), byteTokens + elapsed * limits.getByteRate());
+        }
+    }
 
-            if (timeDelta < 0.0) {
-                timeDelta = 0.0;
-            }
+    /**
+     * @return True if packet should be still passed to the next handler
+     */
+    private boolean onLimitExceeded(ChannelHandlerContext ctx) {
+        switch (limits.getAction()) {
+            case DROP:
+                return false;
+            case THROTTLE:
+                throttle(ctx);
+                return true;
+            default:
+                closeConnection(ctx, "Closed %s due to many packets sent (limit %d packets and %d bytes per second)",
+                        ctx.channel().remoteAddress(), limits.getPacketRate(), limits.getByteRate());
+                return false;
+        }
+    }
 
-            if (timeDelta < this.intervalResolution) {
-                this.data[this.newestData] += packets;
-                this.sum += packets;
-                return;
-            }
+    /**
+     * Server-wide limit may be exceeded by any player, so it never closes the connection.
+     * Packet is dropped, or reading is paused in throttle mode
+     * @return True if packet should be still passed to the next handler
+     */
+    private boolean onGlobalLimitExceeded(ChannelHandlerContext ctx) {
+        if (limits.getAction() == TrafficLimits.Action.THROTTLE) {
+            throttle(ctx);
+            return true;
+        }
 
-            int bucketsToMove = (int)(timeDelta / this.intervalResolution);
-            double nextBucketTime = this.lastBucketTime + bucketsToMove * this.intervalResolution;
+        return false;
+    }
 
-            if (bucketsToMove >= this.data.length) {
-                Arrays.fill(this.data, 0);
-                this.data[0] = packets;
-                this.sum = packets;
-                this.newestData = 0;
-                this.lastBucketTime = timeMs;
-                return;
-            }
+    private void throttle(ChannelHandlerContext ctx) {
+        if (throttled) return;
 
-            for (int i = 1; i < bucketsToMove; ++i) {
-                int index = (this.newestData + i) % this.data.length;
-                this.sum -= this.data[index];
-                this.data[index] = 0;
-            }
+        throttled = true;
+        ctx.channel().config().setAutoRead(false);
+        ctx.executor().schedule(() -> resume(ctx), getThrottleDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        refill();
 
-            int newestDataIndex = (this.newestData + bucketsToMove) % this.data.length;
-            this.sum += packets - this.data[newestDataIndex];
-            this.data[newestDataIndex] = packets;
-            this.newestData = newestDataIndex;
-            this.lastBucketTime = nextBucketTime;
+        if (packetTokens < 0 || byteTokens < 0) {
+            ctx.executor().schedule(() -> resume(ctx), getThrottleDelay(), TimeUnit.MILLISECONDS);
+            return;
         }
 
-        public double getCurrentPacketRate() {
-            return this.sum / (this.intervalTime / MILLISECONDS_TO_SECONDS);
+        throttled = false;
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    /**
+     * @return Time in milliseconds until the channel budget is positive again
+     */
+    private long getThrottleDelay() {
+        long delay = TrafficLimits.TICK_MILLIS;
+
+        if (packetTokens < 0) {
+            delay = Math.max(delay, -packetTokens / limits.getPacketRate() + 1);
+        }
+
+        if (byteTokens < 0) {
+            delay = Math.max(delay, -byteTokens / limits.getByteRate() + 1);
         }
+
+        return delay;
+    }
+
+    private void closeConnection(ChannelHandlerContext ctx, String reason, Object... args) {
+        ctx.close();
+        Log.info(reason, args);
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection.pipeline;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.concurrent.FastThreadLocal;
+import ua.nanit.limbo.protocol.ByteMessage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Writes packets in compressed format: data length (0 if packet is smaller
+ * than threshold) followed by zlib-deflated or raw packet id and data.
+ * Deflater is created once per thread, not per connection,
+ * because its native state takes hundreds of kilobytes, so one instance may be shared by all channels
+ */
+@ChannelHandler.Sharable
+public class PacketCompressor extends MessageToByteEncoder<ByteBuf> {
+
+    private static final int DEFLATE_CHUNK = 8192;
+
+    // Deflaters are indexed by compression level from -1 (default) to 9, so compressors
+    // replaced on reload share them instead of leaving native zlib streams behind
+    private static final FastThreadLocal<Deflater[]> DEFLATERS = new FastThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+
+        @Override
+        protected void onRemoval(Deflater[] deflaters) {
+            for (Deflater deflater : deflaters) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    };
+
+    private final int threshold;
+    private final int level;
+
+    public PacketCompressor(int threshold, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level);
+
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf buf, ByteBuf out) {
+        ByteMessage msg = new ByteMessage(out);
+        int length = buf.readableBytes();
+
+        if (length < threshold) {
+            msg.writeVarInt(0);
+            msg.writeBytes(buf);
+            return;
+        }
+
+        msg.writeVarInt(length);
+        deflate(getDeflater(), buf, out);
+    }
+
+    private Deflater getDeflater() {
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[level + 1];
+
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            deflaters[level + 1] = deflater;
+        }
+
+        return deflater;
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ByteBuf msg, boolean preferDirect) {
+        int length = msg.readableBytes();
+        int anticipatedRequiredCapacity = 5 + (length < threshold ? length : length / 2 + 16);
+        return ctx.alloc().directBuffer(anticipatedRequiredCapacity);
+    }
+
+    /**
+     * Deflate all readable bytes of the source into destination
+     * @param deflater Deflater to use. It will be reset after compression
+     * @param source Direct or writable buffer to compress
+     * @param destination Buffer to write compressed data
+     */
+    public static void deflate(Deflater deflater, ByteBuf source, ByteBuf destination) {
+        deflater.setInput(source.nioBuffer());
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            destination.ensureWritable(DEFLATE_CHUNK);
+            ByteBuffer target = destination.nioBuffer(destination.writerIndex(), destination.writableBytes());
+            int written = deflater.deflate(target);
+            destination.writerIndex(destination.writerIndex() + written);
+        }
+
+        source.skipBytes(source.readableBytes());
+        deflater.reset();
+    }
+}
@@ -18,10 +18,13 @@
 package ua.nanit.limbo.connection.pipeline;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import ua.nanit.limbo.metrics.LimboMetrics;
 import ua.nanit.limbo.protocol.ByteMessage;
 import ua.nanit.limbo.protocol.Packet;
+import ua.nanit.limbo.protocol.packets.play.PacketKeepAlive;
 import ua.nanit.limbo.protocol.registry.State;
 import ua.nanit.limbo.protocol.registry.Version;
 import ua.nanit.limbo.server.Log;
@@ -30,10 +33,23 @@ import java.util.List;
 
 public class PacketDecoder extends MessageToMessageDecoder<ByteBuf> {
 
+    // Reusable cursor over incoming frames
+    private final ByteMessage msg = new ByteMessage(Unpooled.EMPTY_BUFFER);
+    private final LimboMetrics metrics;
+    // Keepalive is the only packet a player in the world answers regularly. Handlers only read
+    // its id, which is reset before each decode, so one instance per connection is reused
+    private final PacketKeepAlive keepAlive = new PacketKeepAlive();
+
+    // Counted locally and published to metrics once per read
+    private long packetsRead;
+    private long bytesRead;
+
     private State.PacketRegistry mappings;
     private Version version;
+    private int keepAliveId;
 
-    public PacketDecoder() {
+    public PacketDecoder(LimboMetrics metrics) {
+        this.metrics = metrics;
         updateVersion(Version.getMin());
         updateState(State.HANDSHAKING);
     }
@@ -42,26 +58,55 @@ public class PacketDecoder extends MessageToMessageDecoder<ByteBuf> {
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
         if (!ctx.channel().isActive() || mappings == null) return;
 
-        ByteMessage msg = new ByteMessage(buf);
-        int packetId = msg.readVarInt();
-        Packet packet = mappings.getPacket(packetId);
+        ByteMessage msg = this.msg.wrap(buf);
+        packetsRead++;
+        bytesRead += buf.readableBytes();
+
+        try {
+            int packetId = msg.readVarInt();
+            Packet packet;
 
-        if (packet != null) {
-            Log.debug("Received packet %s[0x%s] (%d bytes)", packet.toString(), Integer.toHexString(packetId), msg.readableBytes());
-            try {
-                packet.decode(msg, version);
-            } catch (Exception e) {
+            if (packetId == keepAliveId && packetId >= 0) {
+                keepAlive.setId(0);
+                packet = keepAlive;
+            } else {
+                packet = mappings.getPacket(packetId);
+            }
+
+            if (packet != null) {
                 if (Log.isDebug()) {
-                    Log.warning("Cannot decode packet 0x%s", e, Integer.toHexString(packetId));
-                } else {
-                    Log.warning("Cannot decode packet 0x%s: %s", Integer.toHexString(packetId), e.getMessage());
+                    Log.debug("Received packet %s[0x%s] (%d bytes)", packet.toString(), Integer.toHexString(packetId), msg.readableBytes());
+                }
+                try {
+                    packet.decode(msg, version);
+                } catch (Exception e) {
+                    metrics.onDecodeError();
+
+                    if (Log.isDebug()) {
+                        Log.warning("Cannot decode packet 0x%s", e, Integer.toHexString(packetId));
+                    } else {
+                        Log.warning("Cannot decode packet 0x%s: %s", Integer.toHexString(packetId), e.getMessage());
+                    }
                 }
+
+                ctx.fireChannelRead(packet);
+            } else if (Log.isDebug()) {
+                Log.debug("Undefined incoming packet: 0x%s", Integer.toHexString(packetId));
             }
+        } finally {
+            msg.wrap(Unpooled.EMPTY_BUFFER);
+        }
+    }
 
-            ctx.fireChannelRead(packet);
-        } else {
-            Log.debug("Undefined incoming packet: 0x" + Integer.toHexString(packetId));
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (packetsRead > 0) {
+            metrics.onPacketsIn(packetsRead, bytesRead);
+            packetsRead = 0;
+            bytesRead = 0;
         }
+
+        super.channelReadComplete(ctx);
     }
 
     public void updateVersion(Version version) {
@@ -70,5 +115,6 @@ public class PacketDecoder extends MessageToMessageDecoder<ByteBuf> {
 
     public void updateState(State state) {
         this.mappings = state.serverBound.getRegistry(version);
+        this.keepAliveId = mappings != null ? mappings.getPacketId(PacketKeepAlive.class) : -1;
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection.pipeline;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.util.concurrent.FastThreadLocal;
+import ua.nanit.limbo.protocol.ByteMessage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses incoming frames. Inflater is created once per thread, so one instance may be shared by all channels
+ */
+@ChannelHandler.Sharable
+public class PacketDecompressor extends MessageToMessageDecoder<ByteBuf> {
+
+    // Limbo doesn't expect large packets from client, so this limit is lower than vanilla's
+    private static final int MAX_UNCOMPRESSED_SIZE = 2 * 1024 * 1024;
+
+    private static final FastThreadLocal<Inflater> INFLATERS = new FastThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+
+        @Override
+        protected void onRemoval(Inflater inflater) {
+            inflater.end();
+        }
+    };
+
+    private final int threshold;
+
+    public PacketDecompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
+        int length = new ByteMessage(buf).readVarInt();
+
+        if (length == 0) {
+            out.add(buf.retain());
+            return;
+        }
+
+        if (length < threshold || length > MAX_UNCOMPRESSED_SIZE) {
+            throw new DecoderException("Bad uncompressed data length: " + length);
+        }
+
+        Inflater inflater = INFLATERS.get();
+        // One spare byte lets us detect data longer than declared without another inflate call
+        ByteBuf uncompressed = ctx.alloc().heapBuffer(length + 1);
+
+        try {
+            inflater.setInput(buf.nioBuffer());
+            ByteBuffer target = uncompressed.nioBuffer(0, length + 1);
+
+            while (!inflater.finished() && target.hasRemaining()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+
+            if (target.position() != length) {
+                throw new DecoderException("Uncompressed data length doesn't match declared " + length + " bytes");
+            }
+
+            if (!inflater.finished()) {
+                throw new DecoderException("Compressed data is truncated");
+            }
+
+            if (inflater.getRemaining() > 0) {
+                throw new DecoderException("Trailing data after compressed packet");
+            }
+
+            uncompressed.writerIndex(length);
+            buf.skipBytes(buf.readableBytes());
+            out.add(uncompressed);
+        } catch (DataFormatException e) {
+            uncompressed.release();
+            throw new DecoderException("Cannot inflate packet", e);
+        } catch (Exception e) {
+            uncompressed.release();
+            throw e;
+        } finally {
+            inflater.reset();
+        }
+    }
+}
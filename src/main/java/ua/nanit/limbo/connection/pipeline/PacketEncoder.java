@@ -20,6 +20,7 @@ package ua.nanit.limbo.connection.pipeline;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import ua.nanit.limbo.metrics.LimboMetrics;
 import ua.nanit.limbo.protocol.ByteMessage;
 import ua.nanit.limbo.protocol.Packet;
 import ua.nanit.limbo.protocol.PacketSnapshot;
@@ -29,10 +30,18 @@ import ua.nanit.limbo.server.Log;
 
 public class PacketEncoder extends MessageToByteEncoder<Packet> {
 
+    private final LimboMetrics metrics;
+
+    // Counted locally and published to metrics once per flush
+    private long packetsWritten;
+    private long bytesWritten;
+
     private State.PacketRegistry registry;
+    private State state;
     private Version version;
 
-    public PacketEncoder() {
+    public PacketEncoder(LimboMetrics metrics) {
+        this.metrics = metrics;
         updateVersion(Version.getMin());
         updateState(State.HANDSHAKING);
     }
@@ -59,6 +68,8 @@ public class PacketEncoder extends MessageToByteEncoder<Packet> {
 
         try {
             packet.encode(msg, version);
+            packetsWritten++;
+            bytesWritten += msg.readableBytes();
 
             if (Log.isDebug()) {
                 Log.debug("Sending %s[0x%s] packet (%d bytes)", packet.toString(), Integer.toHexString(packetId), msg.readableBytes());
@@ -68,11 +79,27 @@ public class PacketEncoder extends MessageToByteEncoder<Packet> {
         }
     }
 
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (packetsWritten > 0) {
+            metrics.onPacketsOut(packetsWritten, bytesWritten);
+            packetsWritten = 0;
+            bytesWritten = 0;
+        }
+
+        super.flush(ctx);
+    }
+
+    public State getState() {
+        return state;
+    }
+
     public void updateVersion(Version version) {
         this.version = version;
     }
 
     public void updateState(State state) {
+        this.state = state;
         this.registry = state.clientBound.getRegistry(version);
     }
 
@@ -0,0 +1,182 @@
+package ua.nanit.limbo.connection.pipeline;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import ua.nanit.limbo.configuration.LimboConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic limits shared by all {@link ChannelTrafficHandler}s. All budgets are integer token buckets
+ * counted in 1/1000 of packet or byte, so refill per millisecond equals the configured rate per second.
+ * Handlers read time from a coarse clock, which is updated with the server-wide buckets once per tick,
+ * instead of calling {@link System#nanoTime()} for every packet
+ */
+public final class TrafficLimits {
+
+    public static final long UNIT = 1000;
+    static final long TICK_MILLIS = 5;
+
+    private final int maxPacketSize;
+    private final long packetRate;
+    private final long packetCapacity;
+    private final long byteRate;
+    private final long byteCapacity;
+    private final Action action;
+
+    private final long globalPacketRate;
+    private final long globalByteRate;
+    private final AtomicLong globalPackets;
+    private final AtomicLong globalBytes;
+
+    private final long start = System.nanoTime();
+    private volatile long now;
+    private volatile ScheduledFuture<?> tickTask;
+
+    public TrafficLimits(int maxPacketSize, double interval, double maxPacketRate, double maxByteRate,
+                         double globalPacketRate, double globalByteRate, Action action) {
+        this.maxPacketSize = maxPacketSize;
+        this.packetRate = interval > 0 && maxPacketRate > 0 ? Math.max(1, Math.round(maxPacketRate)) : -1;
+        this.packetCapacity = capacity(packetRate, interval);
+        this.byteRate = interval > 0 && maxByteRate > 0 ? Math.max(1, Math.round(maxByteRate)) : -1;
+        this.byteCapacity = capacity(byteRate, interval);
+        this.action = action;
+        this.globalPacketRate = globalPacketRate > 0 ? Math.max(1, Math.round(globalPacketRate)) : -1;
+        this.globalByteRate = globalByteRate > 0 ? Math.max(1, Math.round(globalByteRate)) : -1;
+        // Server-wide budget is one second of traffic
+        this.globalPackets = new AtomicLong(this.globalPacketRate * UNIT);
+        this.globalBytes = new AtomicLong(this.globalByteRate * UNIT);
+    }
+
+    public static TrafficLimits create(LimboConfig config) {
+        return new TrafficLimits(config.getMaxPacketSize(), config.getInterval(), config.getMaxPacketRate(),
+                config.getMaxByteRate(), config.getGlobalPacketRate(), config.getGlobalByteRate(),
+                config.getTrafficAction());
+    }
+
+    /**
+     * @return True if limits are started and can be applied to channels
+     */
+    public boolean isRunning() {
+        return tickTask != null;
+    }
+
+    /**
+     * Start updating the clock and server-wide buckets
+     * @param group Group on which the tick task runs
+     */
+    public void start(EventLoopGroup group) {
+        tickTask = group.next().scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (tickTask != null) {
+            tickTask.cancel(false);
+        }
+    }
+
+    public void tick() {
+        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long elapsed = time - now;
+
+        now = time;
+
+        if (elapsed > 0) {
+            refill(globalPackets, globalPacketRate, elapsed);
+            refill(globalBytes, globalByteRate, elapsed);
+        }
+    }
+
+    /**
+     * @return Coarse time in milliseconds, updated once per tick
+     */
+    public long now() {
+        return now;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public long getPacketRate() {
+        return packetRate;
+    }
+
+    public long getPacketCapacity() {
+        return packetCapacity;
+    }
+
+    public long getByteRate() {
+        return byteRate;
+    }
+
+    public long getByteCapacity() {
+        return byteCapacity;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * Take packet and bytes from the server-wide budget
+     * @return False if server-wide limit is exceeded
+     */
+    public boolean acquireGlobal(int bytes) {
+        if (globalPacketRate > 0 && !acquire(globalPackets, UNIT)) return false;
+
+        if (globalByteRate > 0 && !acquire(globalBytes, bytes * UNIT)) {
+            // Refused packet shouldn't drain the packet budget
+            if (globalPacketRate > 0) globalPackets.addAndGet(UNIT);
+            return false;
+        }
+
+        return true;
+    }
+
+    public boolean hasGlobalLimit() {
+        return globalPacketRate > 0 || globalByteRate > 0;
+    }
+
+    private static boolean acquire(AtomicLong tokens, long amount) {
+        long current;
+
+        do {
+            current = tokens.get();
+            if (current < amount) return false;
+        } while (!tokens.compareAndSet(current, current - amount));
+
+        return true;
+    }
+
+    private static void refill(AtomicLong tokens, long rate, long elapsed) {
+        if (rate <= 0) return;
+
+        long max = rate * UNIT;
+        long current;
+
+        do {
+            current = tokens.get();
+        } while (!tokens.compareAndSet(current, Math.min(max, current + elapsed * rate)));
+    }
+
+    private static long capacity(long rate, double interval) {
+        return rate > 0 ? Math.max(UNIT, (long) (rate * interval * UNIT)) : -1;
+    }
+
+    public enum Action {
+        /**
+         * Discard packets over the limit
+         */
+        DROP,
+        /**
+         * Stop reading from the channel until budget is refilled
+         */
+        THROTTLE,
+        /**
+         * Close the channel
+         */
+        CLOSE
+    }
+}
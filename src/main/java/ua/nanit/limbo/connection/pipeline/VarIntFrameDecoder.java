@@ -18,14 +18,50 @@
 package ua.nanit.limbo.connection.pipeline;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import ua.nanit.limbo.connection.StatusFrames;
 import ua.nanit.limbo.server.Log;
 
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class VarIntFrameDecoder extends ByteToMessageDecoder {
 
+    private static final int MAX_LENGTH_BYTES = 3;
+    private static final int LEGACY_PING = 0xFE;
+    private static final int LEGACY_PING_PAYLOAD = 0x01;
+    private static final int LEGACY_PLUGIN_MESSAGE = 0xFA;
+    // How long to wait for the rest of legacy ping before answering what was received
+    private static final long LEGACY_WAIT_MILLIS = 100;
+
+    private static final int LEGACY_INCOMPLETE = 0;
+    private static final int LEGACY_FOUND = 1;
+    private static final int NOT_LEGACY = 2;
+
+    private final StatusFrames statusFrames;
+    private boolean detectLegacy;
+    private ScheduledFuture<?> legacyTimeout;
+
+    // Length of the frame which body isn't fully received yet. Kept between
+    // reads to not parse the same length prefix again. -1 if there is no such frame
+    private int pendingLength = -1;
+    private int pendingLengthBytes;
+
+    public VarIntFrameDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param statusFrames Cache used to answer legacy server list pings, or null to not answer them
+     */
+    public VarIntFrameDecoder(StatusFrames statusFrames) {
+        this.statusFrames = statusFrames;
+        this.detectLegacy = statusFrames != null;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
         if (!ctx.channel().isActive()) {
@@ -33,28 +69,120 @@ public class VarIntFrameDecoder extends ByteToMessageDecoder {
             return;
         }
 
-        VarIntByteDecoder reader = new VarIntByteDecoder();
-        int varIntEnd = in.forEachByte(reader);
+        if (detectLegacy) {
+            int result = detectLegacyPing(in);
 
-        if (varIntEnd == -1) return;
+            if (result == LEGACY_INCOMPLETE) {
+                scheduleLegacyTimeout(ctx);
+                return;
+            }
 
-        if (reader.getResult() == VarIntByteDecoder.DecodeResult.SUCCESS) {
-            int readVarInt = reader.getReadVarInt();
-            int bytesRead = reader.getBytesRead();
-            if (readVarInt < 0) {
-                Log.error("[VarIntFrameDecoder] Bad data length");
-            } else if (readVarInt == 0) {
-                in.readerIndex(varIntEnd + 1);
-            } else {
-                int minimumRead = bytesRead + readVarInt;
+            detectLegacy = false;
+            cancelLegacyTimeout();
 
-                if (in.isReadable(minimumRead)) {
-                    out.add(in.retainedSlice(varIntEnd + 1, readVarInt));
-                    in.skipBytes(minimumRead);
+            if (result == LEGACY_FOUND) {
+                respondLegacy(ctx, in, false);
+                return;
+            }
+        }
+
+        int length = pendingLength;
+        int lengthBytes = pendingLengthBytes;
+
+        if (length == -1) {
+            int readerIndex = in.readerIndex();
+            int maxRead = Math.min(MAX_LENGTH_BYTES, in.readableBytes());
+            boolean complete = false;
+
+            length = 0;
+            lengthBytes = 0;
+
+            while (lengthBytes < maxRead) {
+                byte k = in.getByte(readerIndex + lengthBytes);
+                length |= (k & 0x7F) << lengthBytes++ * 7;
+
+                if ((k & 0x80) != 128) {
+                    complete = true;
+                    break;
                 }
             }
-        } else if (reader.getResult() == VarIntByteDecoder.DecodeResult.TOO_BIG) {
-            Log.error("[VarIntFrameDecoder] Too big data");
+
+            if (!complete) {
+                if (lengthBytes == MAX_LENGTH_BYTES) {
+                    Log.error("[VarIntFrameDecoder] Too big data");
+                    in.clear();
+                    ctx.close();
+                }
+                return;
+            }
+
+            if (length == 0) {
+                in.skipBytes(lengthBytes);
+                return;
+            }
         }
+
+        if (!in.isReadable(lengthBytes + length)) {
+            pendingLength = length;
+            pendingLengthBytes = lengthBytes;
+            return;
+        }
+
+        pendingLength = -1;
+        out.add(in.retainedSlice(in.readerIndex() + lengthBytes, length));
+        in.skipBytes(lengthBytes + length);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        cancelLegacyTimeout();
+    }
+
+    /**
+     * Legacy ping may be split across several reads, so it's buffered until its header is complete.
+     * Clients before 1.4 send only 0xFE, 1.4 and 1.5 send 0xFE 0x01 and 1.6 append 0xFA plugin message.
+     * Modern frame may start with the same bytes as its length prefix, but is followed by other bytes
+     */
+    private static int detectLegacyPing(ByteBuf in) {
+        int readerIndex = in.readerIndex();
+        int readable = in.readableBytes();
+
+        if (in.getUnsignedByte(readerIndex) != LEGACY_PING) return NOT_LEGACY;
+        if (readable == 1) return LEGACY_INCOMPLETE;
+        if (in.getUnsignedByte(readerIndex + 1) != LEGACY_PING_PAYLOAD) return NOT_LEGACY;
+        if (readable == 2) return LEGACY_INCOMPLETE;
+
+        return in.getUnsignedByte(readerIndex + 2) == LEGACY_PLUGIN_MESSAGE ? LEGACY_FOUND : NOT_LEGACY;
+    }
+
+    /**
+     * Clients before 1.6 send nothing after the ping and wait for response,
+     * so if nothing more arrives, ping is answered in format matching the received bytes
+     */
+    private void scheduleLegacyTimeout(ChannelHandlerContext ctx) {
+        if (legacyTimeout != null) return;
+
+        legacyTimeout = ctx.executor().schedule(() -> {
+            legacyTimeout = null;
+
+            if (!detectLegacy || !ctx.channel().isActive()) return;
+
+            ByteBuf buf = internalBuffer();
+            detectLegacy = false;
+            respondLegacy(ctx, buf, buf.readableBytes() == 1);
+        }, LEGACY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelLegacyTimeout() {
+        if (legacyTimeout != null) {
+            legacyTimeout.cancel(false);
+            legacyTimeout = null;
+        }
+    }
+
+    private void respondLegacy(ChannelHandlerContext ctx, ByteBuf in, boolean old) {
+        in.skipBytes(in.readableBytes());
+        ctx.writeAndFlush(statusFrames.getLegacyResponse(old).duplicate())
+                .addListener(ChannelFutureListener.CLOSE);
     }
-}
\ No newline at end of file
+}
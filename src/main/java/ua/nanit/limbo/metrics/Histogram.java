@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed buckets in seconds, as Prometheus expects
+ */
+public final class Histogram {
+
+    private static final double[] BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private final long[] bounds = new long[BUCKETS.length];
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            bounds[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void observe(long nanos) {
+        int bucket = 0;
+
+        while (bucket < bounds.length && nanos > bounds[bucket]) {
+            bucket++;
+        }
+
+        counts[bucket].increment();
+        sum.add(nanos);
+    }
+
+    void write(PrometheusWriter writer, String name, String labels) {
+        long cumulative = 0;
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+
+        for (int i = 0; i < BUCKETS.length; i++) {
+            cumulative += counts[i].sum();
+            writer.sample(name + "_bucket", prefix + "le=\"" + BUCKETS[i] + "\"", cumulative);
+        }
+
+        cumulative += counts[BUCKETS.length].sum();
+        writer.sample(name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        writer.sample(name + "_sum", labels, sum.sum() / (double) TimeUnit.SECONDS.toNanos(1));
+        writer.sample(name + "_count", labels, cumulative);
+    }
+}
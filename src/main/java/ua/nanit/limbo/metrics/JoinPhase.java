@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.metrics;
+
+/**
+ * Measured phases of the player's join
+ */
+public enum JoinPhase {
+
+    // From connection to login success
+    LOGIN("login"),
+    // From login success to the client's finish configuration, 1.20.2+ only
+    CONFIGURATION("configuration"),
+    // From connection to spawn
+    JOIN("join");
+
+    private final String label;
+
+    JoinPhase(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
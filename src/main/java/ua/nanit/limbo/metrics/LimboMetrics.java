@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.metrics;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.util.internal.PlatformDependent;
+import ua.nanit.limbo.protocol.SnapshotArena;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server metrics. All counters are striped {@link LongAdder}s, so recording from
+ * many event loops doesn't contend. Hot paths like packet codecs accumulate counts locally
+ * and publish them once per read or flush
+ */
+public final class LimboMetrics {
+
+    private static final State[] STATES = State.values();
+    private static final Version[] VERSIONS = Version.values();
+    private static final String[] STATE_LABELS = new String[STATES.length];
+    private static final String[] VERSION_LABELS = new String[VERSIONS.length];
+
+    static {
+        for (State state : STATES) {
+            STATE_LABELS[state.ordinal()] = state.name().toLowerCase(Locale.ROOT);
+        }
+
+        for (Version version : VERSIONS) {
+            VERSION_LABELS[version.ordinal()] = version.isSupported()
+                    ? version.name().substring(1).replace('_', '.')
+                    : "undefined";
+        }
+    }
+
+    private final LongAdder[][] connections = new LongAdder[STATES.length][VERSIONS.length];
+    private final LongAdder[] loginFailures = new LongAdder[LoginFailure.values().length];
+    private final Histogram[] joinPhases = new Histogram[JoinPhase.values().length];
+
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder snapshotWrites = new LongAdder();
+    private final LongAdder keepAliveTimeouts = new LongAdder();
+    private final LongAdder addressRejects = new LongAdder();
+    private final LongAdder subnetRejects = new LongAdder();
+    private final LongAdder slowClientEvictions = new LongAdder();
+
+    private volatile SnapshotArena snapshotArena;
+
+    public LimboMetrics() {
+        for (LongAdder[] stateConnections : connections) {
+            for (int i = 0; i < stateConnections.length; i++) {
+                stateConnections[i] = new LongAdder();
+            }
+        }
+
+        for (int i = 0; i < loginFailures.length; i++) {
+            loginFailures[i] = new LongAdder();
+        }
+
+        for (int i = 0; i < joinPhases.length; i++) {
+            joinPhases[i] = new Histogram();
+        }
+    }
+
+    public void onConnectionAdded(State state, Version version) {
+        connections[state.ordinal()][version.ordinal()].increment();
+    }
+
+    public void onConnectionRemoved(State state, Version version) {
+        connections[state.ordinal()][version.ordinal()].decrement();
+    }
+
+    public void onJoin() {
+        joins.increment();
+    }
+
+    public void onLoginFailure(LoginFailure failure) {
+        loginFailures[failure.ordinal()].increment();
+    }
+
+    public void onJoinPhase(JoinPhase phase, long nanos) {
+        joinPhases[phase.ordinal()].observe(nanos);
+    }
+
+    public void onPacketsIn(long packets, long bytes) {
+        packetsIn.add(packets);
+        bytesIn.add(bytes);
+    }
+
+    public void onPacketsOut(long packets, long bytes) {
+        packetsOut.add(packets);
+        bytesOut.add(bytes);
+    }
+
+    public void onSnapshotWrite(long bytes) {
+        snapshotWrites.increment();
+        bytesOut.add(bytes);
+    }
+
+    public void onDecodeError() {
+        decodeErrors.increment();
+    }
+
+    public void onKeepAliveTimeout() {
+        keepAliveTimeouts.increment();
+    }
+
+    /**
+     * @param arena Arena of the currently published packet snapshots
+     */
+    public void setSnapshotArena(SnapshotArena arena) {
+        this.snapshotArena = arena;
+    }
+
+    public void onSlowClientEviction() {
+        slowClientEvictions.increment();
+    }
+
+    /**
+     * @param subnet True if connection was rejected by the subnet limit, false if by the address limit
+     */
+    public void onAdmissionReject(boolean subnet) {
+        (subnet ? subnetRejects : addressRejects).increment();
+    }
+
+    /**
+     * @return All metrics in Prometheus text format
+     */
+    public String scrape() {
+        PrometheusWriter writer = new PrometheusWriter();
+
+        writer.header("limbo_connections", "gauge", "Open connections by state and version");
+        for (State state : STATES) {
+            for (Version version : VERSIONS) {
+                long count = connections[state.ordinal()][version.ordinal()].sum();
+
+                if (count != 0) {
+                    writer.sample("limbo_connections", "state=\"" + STATE_LABELS[state.ordinal()]
+                            + "\",version=\"" + VERSION_LABELS[version.ordinal()] + "\"", count);
+                }
+            }
+        }
+
+        writer.header("limbo_joins_total", "counter", "Players spawned in the world");
+        writer.sample("limbo_joins_total", "", joins.sum());
+
+        writer.header("limbo_login_failures_total", "counter", "Refused or interrupted logins by reason");
+        for (LoginFailure failure : LoginFailure.values()) {
+            writer.sample("limbo_login_failures_total", "reason=\"" + failure.getLabel() + "\"",
+                    loginFailures[failure.ordinal()].sum());
+        }
+
+        writer.header("limbo_join_phase_seconds", "histogram", "Duration of join phases");
+        for (JoinPhase phase : JoinPhase.values()) {
+            joinPhases[phase.ordinal()].write(writer, "limbo_join_phase_seconds",
+                    "phase=\"" + phase.getLabel() + "\"");
+        }
+
+        writer.header("limbo_packets_in_total", "counter", "Decoded incoming packets");
+        writer.sample("limbo_packets_in_total", "", packetsIn.sum());
+        writer.header("limbo_bytes_in_total", "counter", "Bytes of decoded incoming packets");
+        writer.sample("limbo_bytes_in_total", "", bytesIn.sum());
+        writer.header("limbo_packets_out_total", "counter", "Packets encoded per connection");
+        writer.sample("limbo_packets_out_total", "", packetsOut.sum());
+        writer.header("limbo_bytes_out_total", "counter", "Bytes of outgoing packets and pre-encoded frames");
+        writer.sample("limbo_bytes_out_total", "", bytesOut.sum());
+        writer.header("limbo_snapshot_writes_total", "counter", "Writes of pre-encoded frames");
+        writer.sample("limbo_snapshot_writes_total", "", snapshotWrites.sum());
+        writer.header("limbo_decode_errors_total", "counter", "Incoming packets which failed to decode");
+        writer.sample("limbo_decode_errors_total", "", decodeErrors.sum());
+        writer.header("limbo_keepalive_timeouts_total", "counter", "Players disconnected for not answering keepalive");
+        writer.sample("limbo_keepalive_timeouts_total", "", keepAliveTimeouts.sum());
+        writer.header("limbo_slow_client_evictions_total", "counter", "Players disconnected for not reading sent data");
+        writer.sample("limbo_slow_client_evictions_total", "", slowClientEvictions.sum());
+        writer.header("limbo_admission_rejects_total", "counter", "Connections closed by the admission rate limit");
+        writer.sample("limbo_admission_rejects_total", "scope=\"address\"", addressRejects.sum());
+        writer.sample("limbo_admission_rejects_total", "scope=\"subnet\"", subnetRejects.sum());
+
+        writeAllocator(writer);
+        writeArena(writer);
+
+        return writer.toString();
+    }
+
+    private static void writeAllocator(PrometheusWriter writer) {
+        ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+
+        if (allocator instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+
+            writer.header("limbo_netty_allocator_used_bytes", "gauge", "Memory used by the Netty allocator");
+            writer.sample("limbo_netty_allocator_used_bytes", "type=\"heap\"", metric.usedHeapMemory());
+            writer.sample("limbo_netty_allocator_used_bytes", "type=\"direct\"", metric.usedDirectMemory());
+        }
+
+        long direct = PlatformDependent.usedDirectMemory();
+
+        if (direct >= 0) {
+            writer.header("limbo_netty_direct_memory_bytes", "gauge", "Direct memory reserved by Netty");
+            writer.sample("limbo_netty_direct_memory_bytes", "", direct);
+        }
+    }
+
+    private void writeArena(PrometheusWriter writer) {
+        SnapshotArena arena = snapshotArena;
+
+        if (arena == null) return;
+
+        writer.header("limbo_snapshot_arena_bytes", "gauge", "Packet snapshots arena memory");
+        writer.sample("limbo_snapshot_arena_bytes", "type=\"requested\"", arena.getRequestedBytes());
+        writer.sample("limbo_snapshot_arena_bytes", "type=\"unique\"", arena.getUniqueBytes());
+        writer.sample("limbo_snapshot_arena_bytes", "type=\"allocated\"", arena.getAllocatedBytes());
+    }
+}
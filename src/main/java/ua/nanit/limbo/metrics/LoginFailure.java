@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.metrics;
+
+/**
+ * Reasons of refused logins
+ */
+public enum LoginFailure {
+
+    FORWARDING_REQUIRED("forwarding_required"),
+    INVALID_FORWARDING("invalid_forwarding"),
+    SERVER_FULL("server_full"),
+    UNSUPPORTED_VERSION("unsupported_version"),
+    DISCONNECTED("disconnected"),
+    TIMED_OUT("timed_out");
+
+    private final String label;
+
+    LoginFailure(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.metrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import ua.nanit.limbo.server.Log;
+
+import java.net.SocketAddress;
+
+/**
+ * HTTP listener for Prometheus scrapes. Runs on its own single thread,
+ * so scrapes never delay players' event loops
+ */
+public final class MetricsServer {
+
+    private final LimboMetrics metrics;
+    private final SocketAddress address;
+
+    private EventLoopGroup group;
+
+    public MetricsServer(LimboMetrics metrics, SocketAddress address) {
+        this.metrics = metrics;
+        this.address = address;
+    }
+
+    public void start() {
+        MetricsHttpHandler handler = new MetricsHttpHandler(metrics);
+        group = new NioEventLoopGroup(1);
+
+        new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast("http_codec", new HttpServerCodec());
+                        channel.pipeline().addLast("http_aggregator", new HttpObjectAggregator(8192));
+                        channel.pipeline().addLast("handler", handler);
+                    }
+                })
+                .localAddress(address)
+                .bind()
+                .addListener(future -> {
+                    if (future.isSuccess()) {
+                        Log.info("Metrics are available on %s/metrics", address);
+                    } else {
+                        Log.error("Cannot bind metrics listener on %s", future.cause(), address);
+                    }
+                });
+    }
+
+    public void stop() {
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.metrics;
+
+/**
+ * Builder of the Prometheus text exposition format
+ */
+final class PrometheusWriter {
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    void header(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    void sample(String name, String labels, long value) {
+        appendName(name, labels);
+        out.append(value).append('\n');
+    }
+
+    void sample(String name, String labels, double value) {
+        appendName(name, labels);
+        out.append(value).append('\n');
+    }
+
+    private void appendName(String name, String labels) {
+        out.append(name);
+
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+
+        out.append(' ');
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
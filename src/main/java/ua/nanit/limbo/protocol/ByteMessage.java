@@ -41,12 +41,23 @@ import java.util.UUID;
 
 public class ByteMessage extends ByteBuf {
 
-    private final ByteBuf buf;
+    private ByteBuf buf;
 
     public ByteMessage(ByteBuf buf) {
         this.buf = buf;
     }
 
+    /**
+     * Point this message to another buffer, so one instance can be
+     * reused as a cursor over many buffers without allocations
+     * @param buf New underlying buffer
+     * @return This message
+     */
+    public ByteMessage wrap(ByteBuf buf) {
+        this.buf = buf;
+        return this;
+    }
+
     public byte[] toByteArray() {
         byte[] bytes = new byte[buf.readableBytes()];
         buf.readBytes(bytes);
@@ -85,6 +96,14 @@ public class ByteMessage extends ByteBuf {
         }
     }
 
+    public static int getVarIntSize(int value) {
+        if ((value & (0xFFFFFFFF << 7)) == 0) return 1;
+        if ((value & (0xFFFFFFFF << 14)) == 0) return 2;
+        if ((value & (0xFFFFFFFF << 21)) == 0) return 3;
+        if ((value & (0xFFFFFFFF << 28)) == 0) return 4;
+        return 5;
+    }
+
     private void writeVarIntFull(final int value) {
         // See https://steinborn.me/posts/performance/how-fast-can-you-write-a-varint/
         if ((value & (0xFFFFFFFF << 7)) == 0) {
@@ -17,60 +17,242 @@
 
 package ua.nanit.limbo.protocol;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import ua.nanit.limbo.connection.pipeline.PacketCompressor;
+import ua.nanit.limbo.protocol.registry.State;
 import ua.nanit.limbo.protocol.registry.Version;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
 
 /**
- * PacketSnapshot encodes a packet to byte array for each MC version.
- * Some versions have the same snapshot, so there are mappings to avoid data copying
+ * PacketSnapshot encodes a packet for each MC version and stores the result in the {@link SnapshotArena}.
+ * Versions with the same encoded payload share one arena entry, compared by exact content.
+ * Besides raw payloads, snapshot keeps ready-to-send frames (length prefix, packet id and payload)
+ * for each state and version in which wrapped packet is registered, so it can be written
+ * to the channel bypassing packet and length encoders.
+ * If compression is enabled, frames are also kept in compressed format.
+ * Versions are encoded either all at once by {@link #encode()}, or on first use. Encoded version
+ * is published with compare-and-set, so concurrent first uses never block each other
  */
 public class PacketSnapshot implements PacketOut {
 
+    private static final State[] STATES = State.values();
+    private static final Version[] VERSIONS = Version.values();
+
     private final PacketOut packet;
-    private final Map<Version, byte[]> versionMessages = new HashMap<>();
-    private final Map<Version, Version> mappings = new HashMap<>();
+    private final SnapshotArena arena;
+    private final AtomicReferenceArray<Encoded> versions = new AtomicReferenceArray<>(VERSIONS.length);
+    private int compressionThreshold = -1;
+    private int compressionLevel;
 
-    public PacketSnapshot(PacketOut packet) {
+    public PacketSnapshot(PacketOut packet, SnapshotArena arena) {
         this.packet = packet;
+        this.arena = arena;
     }
 
     public PacketOut getWrappedPacket() {
         return packet;
     }
 
+    /**
+     * Get pre-encoded frame of this packet
+     * @param state Current state of the client's encoder
+     * @param version Client's version
+     * @return Shared read-only frame or null if packet isn't registered for this state and version.
+     * Use {@link ByteBuf#retainedDuplicate()} to write it
+     */
+    public ByteBuf getFrame(State state, Version version) {
+        Encoded encoded = getEncoded(version);
+        return encoded != null ? encoded.frames[state.ordinal()] : null;
+    }
+
+    /**
+     * Get pre-encoded frame of this packet in compressed format
+     * @param state Current state of the client's encoder
+     * @param version Client's version
+     * @return Shared read-only frame or null if packet isn't registered for this state and version
+     * or compression isn't enabled
+     */
+    public ByteBuf getCompressedFrame(State state, Version version) {
+        Encoded encoded = getEncoded(version);
+        return encoded != null && encoded.compressedFrames != null
+                ? encoded.compressedFrames[state.ordinal()]
+                : null;
+    }
+
+    /**
+     * @return Summary size of encoded payloads for all encoded versions
+     */
+    public long getTotalBytes() {
+        long total = 0;
+
+        for (int i = 0; i < versions.length(); i++) {
+            Encoded encoded = versions.get(i);
+
+            if (encoded != null) {
+                total += encoded.payload.readableBytes();
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * @return Size of distinct payloads of this snapshot
+     */
+    public long getUniqueBytes() {
+        Map<ByteBuf, Boolean> unique = new IdentityHashMap<>();
+        long total = 0;
+
+        for (int i = 0; i < versions.length(); i++) {
+            Encoded encoded = versions.get(i);
+
+            if (encoded != null && unique.put(encoded.payload, Boolean.TRUE) == null) {
+                total += encoded.payload.readableBytes();
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Keep frames also in compressed format. Frames which size reaches the threshold
+     * are deflated only once when version is encoded, so sending them to compressed connections
+     * costs no CPU. Must be called before any version is encoded
+     * @param threshold Minimal packet size to compress
+     * @param level Deflate compression level
+     */
+    public void enableCompression(int threshold, int level) {
+        this.compressionThreshold = threshold;
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Encode all supported versions
+     */
     public void encode() {
-        Map<Integer, Version> hashes = new HashMap<>();
+        encode(Arrays.asList(VERSIONS));
+    }
+
+    /**
+     * Encode the given versions now instead of on first use. Versions are encoded
+     * as independent fork-join tasks, since packets with registries take several
+     * milliseconds per version
+     */
+    public void encode(Collection<Version> versions) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(versions.size());
+
+        for (Version version : versions) {
+            if (!version.isSupported()) continue;
+
+            tasks.add(ForkJoinTask.adapt(() -> getEncoded(version)));
+        }
+
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    private Encoded getEncoded(Version version) {
+        int index = version.ordinal();
+        Encoded encoded = versions.get(index);
 
-        for (Version version : Version.values()) {
-            if (version.equals(Version.UNDEFINED)) continue;
+        if (encoded == null && version.isSupported()) {
+            Encoded created = encodeVersion(version);
 
-            ByteMessage encodedMessage = ByteMessage.create();
+            // Version may be encoded concurrently, then the first published result is used
+            encoded = versions.compareAndSet(index, null, created) ? created : versions.get(index);
+        }
+
+        return encoded;
+    }
+
+    private Encoded encodeVersion(Version version) {
+        ByteMessage encodedMessage = ByteMessage.create();
+        ByteBuf payload;
+
+        try {
             packet.encode(encodedMessage, version);
+            payload = arena.intern(encodedMessage);
+        } finally {
+            encodedMessage.release();
+        }
 
-            int hash = encodedMessage.hashCode();
-            Version hashed = hashes.get(hash);
+        boolean compressed = compressionThreshold >= 0 && version.moreOrEqual(Version.V1_8);
+        Encoded encoded = new Encoded(payload, compressed);
+        // Versions with the same payload and packet id share one frame
+        Encoded shared = findEncoded(payload);
+        Class<?> packetClass = packet.getClass();
+        Deflater deflater = null;
 
-            if (hashed != null) {
-                mappings.put(version, hashed);
-            } else {
-                hashes.put(hash, version);
-                mappings.put(version, version);
-                versionMessages.put(version, encodedMessage.toByteArray());
+        try {
+            for (State state : STATES) {
+                State.PacketRegistry registry = state.clientBound.getRegistry(version);
+                int packetId = registry != null ? registry.getPacketId(packetClass) : -1;
+                int index = state.ordinal();
+
+                encoded.packetIds[index] = packetId;
+
+                if (packetId == -1) continue;
+
+                if (shared != null && shared.packetIds[index] == packetId
+                        && (!compressed || shared.compressedFrames != null)) {
+                    encoded.frames[index] = shared.frames[index];
+
+                    if (compressed) {
+                        encoded.compressedFrames[index] = shared.compressedFrames[index];
+                    }
+                    continue;
+                }
+
+                ByteBuf frame = createFrame(packetId, payload);
+                encoded.frames[index] = frame;
+
+                if (compressed) {
+                    if (deflater == null) {
+                        deflater = new Deflater(compressionLevel);
+                    }
+
+                    encoded.compressedFrames[index] = createCompressedFrame(frame, compressionThreshold, deflater);
+                }
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
             }
+        }
 
-            encodedMessage.release();
+        return encoded;
+    }
+
+    /**
+     * @return Encoded version with the same payload arena entry, or null if there is no such version yet
+     */
+    private Encoded findEncoded(ByteBuf payload) {
+        for (int i = 0; i < versions.length(); i++) {
+            Encoded encoded = versions.get(i);
+
+            if (encoded != null && encoded.payload == payload) {
+                return encoded;
+            }
         }
+
+        return null;
     }
 
     @Override
     public void encode(ByteMessage msg, Version version) {
-        Version mapped = mappings.get(version);
-        byte[] message = versionMessages.get(mapped);
+        Encoded encoded = getEncoded(version);
 
-        if (message != null)
-            msg.writeBytes(message);
+        if (encoded != null)
+            msg.writeBytes(encoded.payload, encoded.payload.readerIndex(), encoded.payload.readableBytes());
         else
             throw new IllegalArgumentException("No mappings for version " + version);
     }
@@ -80,9 +262,70 @@ public class PacketSnapshot implements PacketOut {
         return packet.getClass().getSimpleName();
     }
 
-    public static PacketSnapshot of(PacketOut packet) {
-        PacketSnapshot snapshot = new PacketSnapshot(packet);
+    public static PacketSnapshot of(PacketOut packet, SnapshotArena arena) {
+        PacketSnapshot snapshot = new PacketSnapshot(packet, arena);
         snapshot.encode();
         return snapshot;
     }
+
+    private ByteBuf createFrame(int packetId, ByteBuf payload) {
+        int length = ByteMessage.getVarIntSize(packetId) + payload.readableBytes();
+        ByteMessage header = ByteMessage.create();
+
+        try {
+            header.writeVarInt(length);
+            header.writeVarInt(packetId);
+
+            // Payload isn't copied, frame only refers to the arena entry
+            return Unpooled.unreleasableBuffer(Unpooled.wrappedUnmodifiableBuffer(
+                    arena.intern(header), payload));
+        } finally {
+            header.release();
+        }
+    }
+
+    private ByteBuf createCompressedFrame(ByteBuf frame, int threshold, Deflater deflater) {
+        ByteBuf data = frame.duplicate();
+        new ByteMessage(data).readVarInt(); // Skip uncompressed frame length
+
+        int length = data.readableBytes();
+        ByteBuf body = Unpooled.buffer(5 + length);
+        ByteBuf buf = Unpooled.buffer(10 + length);
+
+        try {
+            ByteMessage msg = new ByteMessage(body);
+
+            if (length < threshold) {
+                msg.writeVarInt(0);
+                msg.writeBytes(data);
+            } else {
+                msg.writeVarInt(length);
+                PacketCompressor.deflate(deflater, data, body);
+            }
+
+            new ByteMessage(buf).writeVarInt(body.readableBytes());
+            buf.writeBytes(body);
+
+            return arena.intern(buf);
+        } finally {
+            body.release();
+            buf.release();
+        }
+    }
+
+    /**
+     * Payload and frames of one version
+     */
+    private static final class Encoded {
+
+        private final ByteBuf payload;
+        private final int[] packetIds = new int[STATES.length];
+        private final ByteBuf[] frames = new ByteBuf[STATES.length];
+        private final ByteBuf[] compressedFrames;
+
+        Encoded(ByteBuf payload, boolean compressed) {
+            this.payload = payload;
+            this.compressedFrames = compressed ? new ByteBuf[STATES.length] : null;
+        }
+    }
 }
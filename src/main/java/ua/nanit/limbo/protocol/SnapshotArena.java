@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SnapshotArena stores encoded snapshots data off-heap. Data is deduplicated by exact
+ * content, so each distinct byte sequence is stored once, no matter how many snapshots
+ * or versions use it. Small entries are packed into shared chunks.
+ * Arena memory is freed by GC once the arena and all its entries become unreachable
+ */
+public final class SnapshotArena {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNKED_SIZE = CHUNK_SIZE / 4;
+
+    // ByteBuf equality and hash code are based on readable content
+    private final Map<ByteBuf, ByteBuf> entries = new HashMap<>();
+    private ByteBuf chunk;
+
+    private long requestedBytes;
+    private long uniqueBytes;
+    private long allocatedBytes;
+
+    /**
+     * Get arena entry with the same content as the given buffer, storing it if there is no such entry yet
+     * @param content Buffer which readable bytes to store. Its indexes aren't modified
+     * @return Shared read-only entry. Use duplicates of it to read or write to the channel
+     */
+    public synchronized ByteBuf intern(ByteBuf content) {
+        int length = content.readableBytes();
+        requestedBytes += length;
+
+        ByteBuf entry = entries.get(content);
+
+        if (entry == null) {
+            entry = Unpooled.unreleasableBuffer(store(content).asReadOnly());
+            entries.put(entry, entry);
+            uniqueBytes += length;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return Total size of all data passed to the arena
+     */
+    public synchronized long getRequestedBytes() {
+        return requestedBytes;
+    }
+
+    /**
+     * @return Size of distinct data stored in the arena
+     */
+    public synchronized long getUniqueBytes() {
+        return uniqueBytes;
+    }
+
+    /**
+     * @return Size of off-heap memory allocated by the arena
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized int getEntriesCount() {
+        return entries.size();
+    }
+
+    private ByteBuf store(ByteBuf content) {
+        int length = content.readableBytes();
+
+        if (length > MAX_CHUNKED_SIZE) {
+            ByteBuf buf = allocate(length);
+            buf.writeBytes(content, content.readerIndex(), length);
+            return buf;
+        }
+
+        if (chunk == null || chunk.writableBytes() < length) {
+            chunk = allocate(CHUNK_SIZE);
+        }
+
+        int offset = chunk.writerIndex();
+        chunk.writeBytes(content, content.readerIndex(), length);
+        return chunk.slice(offset, length);
+    }
+
+    private ByteBuf allocate(int capacity) {
+        allocatedBytes += capacity;
+        // Wrapped NIO buffer is released by its cleaner, not by reference counting
+        return Unpooled.wrappedBuffer(ByteBuffer.allocateDirect(capacity)).clear();
+    }
+}
@@ -17,6 +17,7 @@
 
 package ua.nanit.limbo.protocol.packets.status;
 
+import ua.nanit.limbo.configuration.LimboConfig;
 import ua.nanit.limbo.protocol.ByteMessage;
 import ua.nanit.limbo.protocol.PacketOut;
 import ua.nanit.limbo.protocol.registry.Version;
@@ -36,17 +37,7 @@ public class PacketStatusResponse implements PacketOut {
 
     @Override
     public void encode(ByteMessage msg, Version version) {
-        int protocol;
-        int staticProtocol =  server.getConfig().getPingData().getProtocol();
-
-        if (staticProtocol > 0) {
-            protocol = staticProtocol;
-        } else {
-            protocol = server.getConfig().getInfoForwarding().isNone()
-                    ? version.getProtocolNumber()
-                    : Version.getMax().getProtocolNumber();
-        }
-
+        int protocol = getProtocol(server.getConfig(), version);
         String ver = server.getConfig().getPingData().getVersion();
         String desc = server.getConfig().getPingData().getDescription();
 
@@ -60,6 +51,21 @@ public class PacketStatusResponse implements PacketOut {
         return getClass().getSimpleName();
     }
 
+    /**
+     * Get protocol number which is reported to the client of specified version
+     */
+    public static int getProtocol(LimboConfig config, Version version) {
+        int staticProtocol = config.getPingData().getProtocol();
+
+        if (staticProtocol > 0) {
+            return staticProtocol;
+        }
+
+        return config.getInfoForwarding().isNone()
+                ? version.getProtocolNumber()
+                : Version.getMax().getProtocolNumber();
+    }
+
     private String getResponseJson(String version, int protocol, int maxPlayers, int online, String description) {
         return String.format(TEMPLATE, version, protocol, maxPlayers, online, description);
     }
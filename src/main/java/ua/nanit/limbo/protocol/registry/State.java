@@ -27,6 +27,7 @@ import ua.nanit.limbo.protocol.packets.status.PacketStatusRequest;
 import ua.nanit.limbo.protocol.packets.status.PacketStatusResponse;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 import static ua.nanit.limbo.protocol.registry.Version.*;
@@ -74,6 +75,9 @@ public enum State {
             clientBound.register(PacketLoginSuccess::new,
                     map(0x02, Version.getMin(), Version.getMax())
             );
+            clientBound.register(PacketSetCompression::new,
+                    map(0x03, V1_8, Version.getMax())
+            );
             clientBound.register(PacketLoginPluginRequest::new,
                     map(0x04, Version.getMin(), Version.getMax())
             );
@@ -352,11 +356,21 @@ public enum State {
         }
     };
 
-    private static final Map<Integer, State> STATE_BY_ID = new HashMap<>();
+    private static final State[] STATE_BY_ID;
 
     static {
+        int maxId = 0;
+
         for (State registry : values()) {
-            STATE_BY_ID.put(registry.stateId, registry);
+            maxId = Math.max(maxId, registry.stateId);
+        }
+
+        STATE_BY_ID = new State[maxId + 1];
+
+        for (State registry : values()) {
+            STATE_BY_ID[registry.stateId] = registry;
+            registry.serverBound.compile();
+            registry.clientBound.compile();
         }
     }
 
@@ -369,26 +383,48 @@ public enum State {
     }
 
     public static State getById(int stateId) {
-        return STATE_BY_ID.get(stateId);
+        return stateId >= 0 && stateId < STATE_BY_ID.length ? STATE_BY_ID[stateId] : null;
     }
 
+    /**
+     * Packets mappings of one direction. Registries are stored in array indexed by version ordinal
+     */
     public static class ProtocolMappings {
 
-        private final Map<Version, PacketRegistry> registry = new HashMap<>();
+        private final PacketRegistry[] registries = new PacketRegistry[Version.values().length];
 
         public PacketRegistry getRegistry(Version version) {
-            return registry.getOrDefault(version, registry.get(getMin()));
+            return registries[version.ordinal()];
         }
 
         public void register(Supplier<?> packet, Mapping... mappings) {
             for (Mapping mapping : mappings) {
                 for (Version ver : getRange(mapping)) {
-                    PacketRegistry reg = registry.computeIfAbsent(ver, PacketRegistry::new);
+                    PacketRegistry reg = registries[ver.ordinal()];
+
+                    if (reg == null) {
+                        reg = new PacketRegistry(ver);
+                        registries[ver.ordinal()] = reg;
+                    }
+
                     reg.register(mapping.packetId, packet);
                 }
             }
         }
 
+        /**
+         * Versions without own registry use registry of the minimal version
+         */
+        private void compile() {
+            PacketRegistry def = registries[getMin().ordinal()];
+
+            for (int i = 0; i < registries.length; i++) {
+                if (registries[i] == null) {
+                    registries[i] = def;
+                }
+            }
+        }
+
         private Collection<Version> getRange(Mapping mapping) {
             Version from = mapping.from;
             Version curr = mapping.to;
@@ -410,11 +446,23 @@ public enum State {
 
     }
 
+    /**
+     * Packets registry for one version. Suppliers are indexed by packet id, and outgoing packet ids
+     * are indexed by slot assigned to each packet class, so lookups do no hashing or boxing
+     */
     public static class PacketRegistry {
 
+        private static final AtomicInteger NEXT_SLOT = new AtomicInteger();
+        private static final ClassValue<Integer> CLASS_SLOTS = new ClassValue<Integer>() {
+            @Override
+            protected Integer computeValue(Class<?> type) {
+                return NEXT_SLOT.getAndIncrement();
+            }
+        };
+
         private final Version version;
-        private final Map<Integer, Supplier<?>> packetsById = new HashMap<>();
-        private final Map<Class<?>, Integer> packetIdByClass = new HashMap<>();
+        private Supplier<?>[] packetsById = new Supplier<?>[0];
+        private int[] packetIdByClass = new int[0];
 
         public PacketRegistry(Version version) {
             this.version = version;
@@ -425,17 +473,32 @@ public enum State {
         }
 
         public Packet getPacket(int packetId) {
-            Supplier<?> supplier = packetsById.get(packetId);
+            if (packetId < 0 || packetId >= packetsById.length) return null;
+            Supplier<?> supplier = packetsById[packetId];
             return supplier == null ? null : (Packet) supplier.get();
         }
 
         public int getPacketId(Class<?> packetClass) {
-            return packetIdByClass.getOrDefault(packetClass, -1);
+            int slot = CLASS_SLOTS.get(packetClass);
+            return slot < packetIdByClass.length ? packetIdByClass[slot] : -1;
         }
 
         public void register(int packetId, Supplier<?> supplier) {
-            packetsById.put(packetId, supplier);
-            packetIdByClass.put(supplier.get().getClass(), packetId);
+            if (packetId >= packetsById.length) {
+                packetsById = Arrays.copyOf(packetsById, packetId + 1);
+            }
+
+            packetsById[packetId] = supplier;
+
+            int slot = CLASS_SLOTS.get(supplier.get().getClass());
+
+            if (slot >= packetIdByClass.length) {
+                int oldLength = packetIdByClass.length;
+                packetIdByClass = Arrays.copyOf(packetIdByClass, slot + 1);
+                Arrays.fill(packetIdByClass, oldLength, packetIdByClass.length, -1);
+            }
+
+            packetIdByClass[slot] = packetId;
         }
 
     }
@@ -17,8 +17,7 @@
 
 package ua.nanit.limbo.protocol.registry;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public enum Version {
 
@@ -76,20 +75,25 @@ public enum Version {
     // 1.20.6 has same protocol number
     V1_21(767);
 
-    private static final Map<Integer, Version> VERSION_MAP;
+    // Versions indexed by protocol number
+    private static final Version[] VERSION_MAP;
     private static final Version MAX;
 
     static {
         Version[] values = values();
 
-        VERSION_MAP = new HashMap<>();
         MAX = values[values.length - 1];
+        VERSION_MAP = new Version[MAX.getProtocolNumber() + 1];
+        Arrays.fill(VERSION_MAP, UNDEFINED);
 
         Version last = null;
         for (Version version : values) {
             version.prev = last;
             last = version;
-            VERSION_MAP.put(version.getProtocolNumber(), version);
+
+            if (version.isSupported()) {
+                VERSION_MAP[version.getProtocolNumber()] = version;
+            }
         }
     }
 
@@ -141,6 +145,8 @@ public enum Version {
     }
 
     public static Version of(int protocolNumber) {
-        return VERSION_MAP.getOrDefault(protocolNumber, UNDEFINED);
+        return protocolNumber >= 0 && protocolNumber < VERSION_MAP.length
+                ? VERSION_MAP[protocolNumber]
+                : UNDEFINED;
     }
 }
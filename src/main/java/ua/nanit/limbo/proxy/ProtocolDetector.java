@@ -7,22 +7,22 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketServerCompressionHandler;
-import io.netty.handler.timeout.ReadTimeoutHandler;
-import ua.nanit.limbo.connection.ClientConnection;
-import ua.nanit.limbo.connection.pipeline.*;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import ua.nanit.limbo.connection.HandshakeHandler;
+import ua.nanit.limbo.connection.pipeline.VarIntFrameDecoder;
 import ua.nanit.limbo.server.LimboServer;
 import ua.nanit.limbo.server.Log;
 
-import java.util.concurrent.TimeUnit;
-
 public class ProtocolDetector extends ChannelInboundHandlerAdapter {
 
     private final LimboServer server;
     private final ProxyConfig proxyConfig;
+    private final HandshakeHandler handshakeHandler;
 
-    public ProtocolDetector(LimboServer server, ProxyConfig proxyConfig) {
+    public ProtocolDetector(LimboServer server, ProxyConfig proxyConfig, HandshakeHandler handshakeHandler) {
         this.server = server;
         this.proxyConfig = proxyConfig;
+        this.handshakeHandler = handshakeHandler;
     }
 
     @Override
@@ -61,27 +61,10 @@ public class ProtocolDetector extends ChannelInboundHandlerAdapter {
         } else {
             Log.info("[WSProxy] Switching to Minecraft mode");
             // Minecraft协议处理
-            PacketDecoder decoder = new PacketDecoder();
-            PacketEncoder encoder = new PacketEncoder();
-            ClientConnection connection = new ClientConnection(ctx.channel(), server, decoder, encoder);
-
-            pipeline.addAfter(ctx.name(), "timeout", new ReadTimeoutHandler(server.getConfig().getReadTimeout(), TimeUnit.MILLISECONDS));
-            pipeline.addAfter("timeout", "frame_decoder", new VarIntFrameDecoder());
-            pipeline.addAfter("frame_decoder", "frame_encoder", new VarIntLengthEncoder());
-
-            String lastHandler = "frame_encoder";
-            if (server.getConfig().isUseTrafficLimits()) {
-                pipeline.addAfter(lastHandler, "traffic_limit", new ChannelTrafficHandler(
-                    server.getConfig().getMaxPacketSize(),
-                    server.getConfig().getInterval(),
-                    server.getConfig().getMaxPacketRate()
-                ));
-                lastHandler = "traffic_limit";
-            }
-
-            pipeline.addAfter(lastHandler, "decoder", decoder);
-            pipeline.addAfter("decoder", "encoder", encoder);
-            pipeline.addAfter("encoder", "handler", connection);
+            pipeline.addAfter(ctx.name(), "flush_consolidation", new FlushConsolidationHandler());
+            pipeline.addAfter("flush_consolidation", "timeout", server.getTimeoutScheduler().getHandler());
+            pipeline.addAfter("timeout", "frame_decoder", new VarIntFrameDecoder(server.getStatusFrames()));
+            pipeline.addAfter("frame_decoder", "handshake", handshakeHandler);
         }
 
         // 先移除自己，再传递数据
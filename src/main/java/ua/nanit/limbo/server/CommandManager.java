@@ -53,6 +53,8 @@ public final class CommandManager extends Thread {
         register(new CmdHelp(server), "help");
         register(new CmdConn(server), "conn");
         register(new CmdMem(), "mem");
+        register(new CmdReload(server), "reload");
+        register(new CmdSnapshots(server), "snapshots");
         register(new CmdStop(), "stop");
         register(new CmdVersion(), "version", "ver");
     }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ua.nanit.limbo.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the server when the settings file is changed. Editors often write a file
+ * in several steps, so reload is done only after the file stays unchanged for a moment
+ */
+final class ConfigWatcher extends Thread {
+
+    private static final String FILE_NAME = "settings.yml";
+    private static final long QUIET_MILLIS = 500;
+
+    private final LimboServer server;
+    private final Path root;
+
+    ConfigWatcher(LimboServer server, Path root) {
+        super("NanoLimbo config watcher");
+        setDaemon(true);
+        this.server = server;
+        this.root = root;
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            Log.info("Watching %s for changes", FILE_NAME);
+
+            while (!isInterrupted()) {
+                if (!isChanged(watcher.take())) continue;
+
+                // Wait until writes stop
+                WatchKey key;
+                while ((key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key);
+                }
+
+                Log.info("%s was changed, reloading", FILE_NAME);
+                server.reload().exceptionally(e -> {
+                    Log.error("Cannot reload settings", e.getCause());
+                    return null;
+                });
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Server is stopping
+        } catch (IOException e) {
+            Log.error("Cannot watch settings file", e);
+        }
+    }
+
+    private static boolean isChanged(WatchKey key) {
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+
+            if (context instanceof Path && ((Path) context).getFileName().toString().equals(FILE_NAME)) {
+                changed = true;
+            }
+        }
+
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs player connections and disconnections. If the number of such events
+ * per second exceeds the threshold, individual messages are hidden and counted,
+ * then printed as one summary line by {@link #flushSummary()}
+ */
+final class ConnectionLog {
+
+    private final int threshold;
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger events = new AtomicInteger();
+    private final LongAdder hiddenConnects = new LongAdder();
+    private final LongAdder hiddenDisconnects = new LongAdder();
+
+    /**
+     * @param threshold Max number of messages per second. Negative value disables the limit
+     */
+    ConnectionLog(int threshold) {
+        this.threshold = threshold;
+    }
+
+    void connected(String username, Object address, Object version) {
+        if (!Log.isInfo()) return;
+
+        if (acquire()) {
+            Log.info("Player %s connected (%s) [%s]", username, address, version);
+        } else {
+            hiddenConnects.increment();
+        }
+    }
+
+    void disconnected(String username) {
+        if (!Log.isInfo()) return;
+
+        if (acquire()) {
+            Log.info("Player %s disconnected", username);
+        } else {
+            hiddenDisconnects.increment();
+        }
+    }
+
+    void flushSummary() {
+        long connected = hiddenConnects.sumThenReset();
+        long disconnected = hiddenDisconnects.sumThenReset();
+
+        if (connected > 0 || disconnected > 0) {
+            Log.info("%d players connected and %d disconnected (individual messages hidden due to high rate)",
+                    connected, disconnected);
+        }
+    }
+
+    private boolean acquire() {
+        if (threshold < 0) return true;
+
+        long second = System.currentTimeMillis() / 1000;
+        long prev = currentSecond.get();
+
+        if (second != prev && currentSecond.compareAndSet(prev, second)) {
+            events.set(0);
+        }
+
+        return events.incrementAndGet() <= threshold;
+    }
+}
@@ -17,20 +17,27 @@
 
 package ua.nanit.limbo.server;
 
+import io.netty.channel.EventLoop;
 import ua.nanit.limbo.connection.ClientConnection;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public final class Connections {
 
     private final Map<UUID, ClientConnection> connections;
+    private final ConnectionLog log;
 
-    public Connections() {
+    public Connections(int logThreshold) {
         connections = new ConcurrentHashMap<>();
+        log = new ConnectionLog(logThreshold);
     }
 
     public Collection<ClientConnection> getAllConnections() {
@@ -43,12 +50,47 @@ public final class Connections {
 
     public void addConnection(ClientConnection connection) {
         connections.put(connection.getUuid(), connection);
-        Log.info("Player %s connected (%s) [%s]", connection.getUsername(),
-                connection.getAddress(), connection.getClientVersion());
+        log.connected(connection.getUsername(), connection.getAddress(), connection.getClientVersion());
     }
 
     public void removeConnection(ClientConnection connection) {
         connections.remove(connection.getUuid());
-        Log.info("Player %s disconnected", connection.getUsername());
+        log.disconnected(connection.getUsername());
+    }
+
+    /**
+     * Print number of connections and disconnections which weren't logged individually
+     */
+    public void logSummary() {
+        log.flushSummary();
+    }
+
+    /**
+     * Apply action to all connections. Connections are grouped by event loop, so each loop
+     * gets only one task which runs action for all its connections and then flushes them together.
+     * Action should write without flush, e.g. {@link ClientConnection#writePacket(Object)}
+     * @param action Action to run in the connection's event loop
+     */
+    public void broadcast(Consumer<ClientConnection> action) {
+        // Grouped on call, so joins and leaves don't pay for keeping per-loop sets
+        Map<EventLoop, List<ClientConnection>> loops = new HashMap<>();
+
+        for (ClientConnection connection : connections.values()) {
+            loops.computeIfAbsent(connection.getChannel().eventLoop(), loop -> new ArrayList<>()).add(connection);
+        }
+
+        for (Map.Entry<EventLoop, List<ClientConnection>> entry : loops.entrySet()) {
+            List<ClientConnection> targets = entry.getValue();
+
+            entry.getKey().execute(() -> {
+                for (ClientConnection connection : targets) {
+                    action.accept(connection);
+                }
+
+                for (ClientConnection connection : targets) {
+                    connection.flush();
+                }
+            });
+        }
     }
 }
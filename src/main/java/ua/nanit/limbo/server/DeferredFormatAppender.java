@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.server;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Async appender which leaves formatting of {@link LogMessage} events to its worker thread.
+ * The default appender formats every message on the caller thread before queueing it.
+ * Events from other loggers are prepared as usual, since their arguments may be mutable
+ */
+public class DeferredFormatAppender extends AsyncAppender {
+
+    @Override
+    protected void preprocess(ILoggingEvent event) {
+        if (!isLogMessage(event)) {
+            super.preprocess(event);
+            return;
+        }
+
+        event.getThreadName();
+        event.getMDCPropertyMap();
+
+        if (isIncludeCallerData()) {
+            event.getCallerData();
+        }
+    }
+
+    private static boolean isLogMessage(ILoggingEvent event) {
+        Object[] args = event.getArgumentArray();
+        return args != null && args.length == 1 && args[0] instanceof LogMessage;
+    }
+}
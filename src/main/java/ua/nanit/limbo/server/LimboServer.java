@@ -20,41 +20,70 @@ package ua.nanit.limbo.server;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.ServerChannel;
-import io.netty.channel.epoll.Epoll;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollServerSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.util.ResourceLeakDetector;
 import ua.nanit.limbo.configuration.LimboConfig;
+import ua.nanit.limbo.connection.AdmissionControl;
+import ua.nanit.limbo.connection.ChannelHandlers;
 import ua.nanit.limbo.connection.ClientChannelInitializer;
-import ua.nanit.limbo.connection.ClientConnection;
 import ua.nanit.limbo.connection.PacketHandler;
 import ua.nanit.limbo.connection.PacketSnapshots;
+import ua.nanit.limbo.connection.StatusFrames;
+import ua.nanit.limbo.connection.TimeoutScheduler;
+import ua.nanit.limbo.connection.pipeline.TrafficLimits;
+import ua.nanit.limbo.metrics.LimboMetrics;
+import ua.nanit.limbo.metrics.MetricsServer;
+import ua.nanit.limbo.protocol.PacketSnapshot;
+import ua.nanit.limbo.protocol.registry.Version;
 import ua.nanit.limbo.proxy.GeoIPService;
 import ua.nanit.limbo.proxy.ProxyConfig;
 import ua.nanit.limbo.world.DimensionRegistry;
 
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ScheduledFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public final class LimboServer {
 
-    private LimboConfig config;
+    private Path root;
+    // Holds the current config and dimension registry too, so a reload publishes all of them at once
+    private volatile PacketSnapshots snapshots;
     private PacketHandler packetHandler;
     private Connections connections;
-    private DimensionRegistry dimensionRegistry;
-    private ScheduledFuture<?> keepAliveTask;
+    private TimeoutScheduler timeoutScheduler;
+    private StatusFrames statusFrames;
+    private AdmissionControl admissionControl;
+    private TrafficLimits trafficLimits;
+    private LimboMetrics metrics;
+    private MetricsServer metricsServer;
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
 
     private CommandManager commandManager;
-
+    private ConfigWatcher configWatcher;
+
+    // Rebuilds run one by one on a separate thread, so event loops aren't blocked
+    private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "NanoLimbo reload thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @return Currently published config. Connections should read settings from the
+     * snapshots they captured instead, so all settings come from the same reload
+     */
     public LimboConfig getConfig() {
-        return config;
+        return snapshots.getConfig();
     }
 
     public PacketHandler getPacketHandler() {
@@ -66,7 +95,41 @@ public final class LimboServer {
     }
 
     public DimensionRegistry getDimensionRegistry() {
-        return dimensionRegistry;
+        return snapshots.getDimensionRegistry();
+    }
+
+    public LimboMetrics getMetrics() {
+        return metrics;
+    }
+
+    public StatusFrames getStatusFrames() {
+        return statusFrames;
+    }
+
+    public ChannelHandlers getChannelHandlers() {
+        return snapshots.getChannelHandlers();
+    }
+
+    /**
+     * @return Currently published packet snapshots
+     */
+    public PacketSnapshots getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return Connection rate limiter or null if disabled
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public TrafficLimits getTrafficLimits() {
+        return trafficLimits;
+    }
+
+    public TimeoutScheduler getTimeoutScheduler() {
+        return timeoutScheduler;
     }
 
     public CommandManager getCommandManager() {
@@ -74,24 +137,25 @@ public final class LimboServer {
     }
 
     public void start() throws Exception {
-        config = new LimboConfig(Paths.get("./"));
-        config.load();
+        load(Paths.get("./"));
 
-        Log.setLevel(config.getDebugLevel());
-        Log.info("Starting server...");
-
-        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.DISABLED);
+        LimboConfig config = getConfig();
+        startBootstrap(config);
 
-        packetHandler = new PacketHandler(this);
-        dimensionRegistry = new DimensionRegistry(this);
-        dimensionRegistry.load(config.getDimensionType());
-        connections = new Connections();
+        if (config.isUseTrafficLimits()) {
+            trafficLimits.start(workerGroup);
+        }
 
-        PacketSnapshots.initPackets(this);
+        long summaryInterval = config.getConnectionLogSummaryInterval();
 
-        startBootstrap();
+        if (summaryInterval > 0) {
+            workerGroup.scheduleAtFixedRate(connections::logSummary, summaryInterval, summaryInterval, TimeUnit.SECONDS);
+        }
 
-        keepAliveTask = workerGroup.scheduleAtFixedRate(this::broadcastKeepAlive, 0L, 5L, TimeUnit.SECONDS);
+        if (config.isUseMetrics()) {
+            metricsServer = new MetricsServer(metrics, config.getMetricsAddress());
+            metricsServer.start();
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "NanoLimbo shutdown thread"));
 
@@ -104,6 +168,11 @@ public final class LimboServer {
             Log.info("[WSProxy] Enabled on same port (protocol auto-detection)");
         }
 
+        if (config.isUseReloadWatcher()) {
+            configWatcher = new ConfigWatcher(this, root);
+            configWatcher.start();
+        }
+
         commandManager = new CommandManager();
         commandManager.registerAll(this);
         commandManager.start();
@@ -111,39 +180,237 @@ public final class LimboServer {
         System.gc();
     }
 
-    private void startBootstrap() {
-        Class<? extends ServerChannel> channelClass;
+    /**
+     * Load configuration, registries and packet snapshots without binding the server.
+     * Used by {@link #start()} and by tools which drive the pipeline directly
+     * @param root Directory with the settings file
+     */
+    public void load(Path root) throws Exception {
+        long start = System.nanoTime();
+
+        this.root = root;
+        LimboConfig config = new LimboConfig(root);
+        config.load();
+
+        Log.setLevel(config.getDebugLevel());
+        Log.info("Starting server...");
+
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.DISABLED);
+
+        long configLoaded = System.nanoTime();
+
+        packetHandler = new PacketHandler(this);
+        DimensionRegistry dimensionRegistry = new DimensionRegistry(this);
+        dimensionRegistry.load(config.getDimensionType());
+
+        long registryLoaded = System.nanoTime();
+
+        connections = new Connections(config.getConnectionLogThreshold());
+        metrics = new LimboMetrics();
+        timeoutScheduler = new TimeoutScheduler(config);
+        statusFrames = new StatusFrames(this);
+        admissionControl = config.isUseAdmission() ? new AdmissionControl(config, metrics) : null;
+        trafficLimits = TrafficLimits.create(config);
 
-        if (config.isUseEpoll() && Epoll.isAvailable()) {
-            bossGroup = new EpollEventLoopGroup(config.getBossGroupSize());
-            workerGroup = new EpollEventLoopGroup(config.getWorkerGroupSize());
-            channelClass = EpollServerSocketChannel.class;
-            Log.debug("Using Epoll transport type");
-        } else {
-            bossGroup = new NioEventLoopGroup(config.getBossGroupSize());
-            workerGroup = new NioEventLoopGroup(config.getWorkerGroupSize());
-            channelClass = NioServerSocketChannel.class;
-            Log.debug("Using Java NIO transport type");
+        publish(PacketSnapshots.create(config, dimensionRegistry, new ChannelHandlers(config)));
+
+        long end = System.nanoTime();
+
+        Log.info("Loaded in %d ms: settings %d ms, dimension registry %d ms, packet snapshots %d ms",
+                TimeUnit.NANOSECONDS.toMillis(end - start),
+                TimeUnit.NANOSECONDS.toMillis(configLoaded - start),
+                TimeUnit.NANOSECONDS.toMillis(registryLoaded - configLoaded),
+                TimeUnit.NANOSECONDS.toMillis(end - registryLoaded));
+    }
+
+    /**
+     * Load settings again and rebuild packet snapshots in the background. Connections
+     * switch to the new snapshots only when they start joining, so players who are
+     * joining at the moment receive all packets from the same set. Players who are
+     * already in the world only get the new tab list header and footer
+     * @return Future completed when the new settings are published
+     */
+    public CompletableFuture<Void> reload() {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, reloadExecutor);
+    }
+
+    private void rebuild() throws Exception {
+        long start = System.nanoTime();
+        PacketSnapshots published = snapshots;
+        LimboConfig current = published.getConfig();
+        LimboConfig next = new LimboConfig(root);
+        next.load();
+
+        DimensionRegistry registry = published.getDimensionRegistry();
+
+        if (!next.getDimensionType().equalsIgnoreCase(current.getDimensionType())) {
+            registry = new DimensionRegistry(this);
+            registry.load(next.getDimensionType());
+        }
+
+        ChannelHandlers handlers = published.getChannelHandlers();
+
+        if (!handlers.isCompatible(next)) {
+            handlers = new ChannelHandlers(next);
+        }
+
+        PacketSnapshots built = PacketSnapshots.create(next, registry, handlers);
+
+        publish(built);
+        broadcastHeaderAndFooter(built.getHeaderAndFooter());
+        timeoutScheduler.update(next);
+        statusFrames.invalidate();
+        Log.setLevel(next.getDebugLevel());
+
+        List<String> restartOnly = getRestartOnlyChanges(current, next);
+
+        if (!restartOnly.isEmpty()) {
+            Log.warning("Changed %s options will be applied after restart", String.join(", ", restartOnly));
         }
 
-        new ServerBootstrap()
+        Log.info("Settings reloaded in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return Names of changed settings sections which are read only on startup
+     */
+    private static List<String> getRestartOnlyChanges(LimboConfig current, LimboConfig next) {
+        List<String> changed = new ArrayList<>();
+
+        if (!next.getAddress().equals(current.getAddress()))
+            changed.add("bind");
+
+        if (next.getTransport() != current.getTransport()
+                || next.getBossGroupSize() != current.getBossGroupSize()
+                || next.getWorkerGroupSize() != current.getWorkerGroupSize()
+                || next.getReceiveBufferSize() != current.getReceiveBufferSize()
+                || next.getWriteBufferLowWaterMark() != current.getWriteBufferLowWaterMark()
+                || next.getWriteBufferHighWaterMark() != current.getWriteBufferHighWaterMark()
+                || next.isUseReusePort() != current.isUseReusePort()
+                || next.getListeners() != current.getListeners())
+            changed.add("netty");
+
+        if (next.isUseTrafficLimits() != current.isUseTrafficLimits()
+                || next.getMaxPacketSize() != current.getMaxPacketSize()
+                || next.getInterval() != current.getInterval()
+                || next.getMaxPacketRate() != current.getMaxPacketRate()
+                || next.getMaxByteRate() != current.getMaxByteRate()
+                || next.getGlobalPacketRate() != current.getGlobalPacketRate()
+                || next.getGlobalByteRate() != current.getGlobalByteRate()
+                || next.getTrafficAction() != current.getTrafficAction())
+            changed.add("traffic");
+
+        if (next.isUseAdmission() != current.isUseAdmission()
+                || next.getAdmissionTableSize() != current.getAdmissionTableSize()
+                || next.getAddressRate() != current.getAddressRate()
+                || next.getAddressBurst() != current.getAddressBurst()
+                || next.getSubnetRate() != current.getSubnetRate()
+                || next.getSubnetBurst() != current.getSubnetBurst())
+            changed.add("admission");
+
+        if (next.isUseMetrics() != current.isUseMetrics()
+                || !Objects.equals(next.getMetricsAddress(), current.getMetricsAddress()))
+            changed.add("metrics");
+
+        if (next.getConnectionLogThreshold() != current.getConnectionLogThreshold()
+                || next.getConnectionLogSummaryInterval() != current.getConnectionLogSummaryInterval())
+            changed.add("connectionLog");
+
+        if (next.isUseReloadWatcher() != current.isUseReloadWatcher())
+            changed.add("reload");
+
+        return changed;
+    }
+
+    /**
+     * Send the reloaded tab list header and footer to players who are already in the world.
+     * The frame is encoded once per version and shared by all players
+     */
+    private void broadcastHeaderAndFooter(PacketSnapshot headerAndFooter) {
+        if (headerAndFooter == null) return;
+
+        connections.broadcast(connection -> {
+            if (connection.isJoinComplete() && connection.getClientVersion().moreOrEqual(Version.V1_8)) {
+                connection.writePacket(headerAndFooter);
+            }
+        });
+    }
+
+    private void publish(PacketSnapshots snapshots) {
+        this.snapshots = snapshots;
+        metrics.setSnapshotArena(snapshots.getArena());
+    }
+
+    private void startBootstrap(LimboConfig config) {
+        Transport transport = config.getTransport().resolve();
+
+        if (transport != config.getTransport() && config.getTransport() != Transport.AUTO) {
+            Log.warning("Transport %s isn't available, using %s", config.getTransport().getName(), transport.getName());
+        }
+
+        ChannelOption<Boolean> reusePort = transport.getReusePortOption();
+        int listeners = 1;
+
+        if (config.isUseReusePort()) {
+            if (reusePort != null) {
+                listeners = config.getListeners();
+            } else {
+                Log.warning("SO_REUSEPORT isn't supported by %s transport, using one listener", transport.getName());
+            }
+        }
+
+        // Each listener is registered on its own boss thread
+        bossGroup = transport.newEventLoopGroup(Math.max(config.getBossGroupSize(), listeners));
+        workerGroup = transport.newEventLoopGroup(config.getWorkerGroupSize());
+        Log.info("Using %s transport", transport.getName());
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
                 .group(bossGroup, workerGroup)
-                .channel(channelClass)
+                .channel(transport.getServerChannelClass())
                 .childHandler(new ClientChannelInitializer(this))
                 .childOption(ChannelOption.TCP_NODELAY, true)
-                .localAddress(config.getAddress())
-                .bind();
-    }
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(config.getReceiveBufferSize()))
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()))
+                .localAddress(config.getAddress());
+
+        if (listeners > 1) {
+            // Accepted channels are spread over the shared worker group, so load stays
+            // balanced even if the kernel distributes connections between listeners unevenly
+            bootstrap.option(reusePort, true);
+            Log.info("Binding %d listeners with SO_REUSEPORT", listeners);
+        }
 
-    private void broadcastKeepAlive() {
-        connections.getAllConnections().forEach(ClientConnection::sendKeepAlive);
+        for (int i = 0; i < listeners; i++) {
+            bootstrap.bind().addListener(future -> {
+                if (!future.isSuccess()) {
+                    Log.error("Cannot bind to %s", future.cause(), config.getAddress());
+                }
+            });
+        }
     }
 
     private void stop() {
         Log.info("Stopping server...");
 
-        if (keepAliveTask != null) {
-            keepAliveTask.cancel(true);
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+
+        if (configWatcher != null) {
+            configWatcher.interrupt();
+        }
+
+        reloadExecutor.shutdownNow();
+
+        if (trafficLimits != null) {
+            trafficLimits.stop();
         }
 
         if (bossGroup != null) {
@@ -155,6 +422,7 @@ public final class LimboServer {
         }
 
         Log.info("Server stopped, Goodbye!");
+        Log.shutdown();
     }
 
 }
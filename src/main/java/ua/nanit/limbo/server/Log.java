@@ -18,6 +18,7 @@
 package ua.nanit.limbo.server;
 
 import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
 import org.slf4j.LoggerFactory;
 
 public final class Log {
@@ -27,28 +28,68 @@ public final class Log {
 
     private Log() {}
 
+    // Messages with arguments are passed to the logger as a LogMessage, which is formatted
+    // by the async appender thread instead of the caller. Fixed arity overloads
+    // avoid varargs array allocation on frequent calls when the level is disabled
+
+    public static void info(Object msg) {
+        if (LOGGER.isInfoEnabled()) LOGGER.info(msg.toString());
+    }
+
+    public static void info(Object msg, Object arg) {
+        if (LOGGER.isInfoEnabled()) LOGGER.info("{}", new LogMessage(msg, arg));
+    }
+
+    public static void info(Object msg, Object arg1, Object arg2) {
+        if (LOGGER.isInfoEnabled()) LOGGER.info("{}", new LogMessage(msg, arg1, arg2));
+    }
+
+    public static void info(Object msg, Object arg1, Object arg2, Object arg3) {
+        if (LOGGER.isInfoEnabled()) LOGGER.info("{}", new LogMessage(msg, arg1, arg2, arg3));
+    }
+
     public static void info(Object msg, Object... args) {
-        LOGGER.info(String.format(msg.toString(), args));
+        if (LOGGER.isInfoEnabled()) LOGGER.info("{}", message(msg, args));
+    }
+
+    public static void debug(Object msg) {
+        if (LOGGER.isDebugEnabled()) LOGGER.debug(msg.toString());
+    }
+
+    public static void debug(Object msg, Object arg) {
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("{}", new LogMessage(msg, arg));
+    }
+
+    public static void debug(Object msg, Object arg1, Object arg2) {
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("{}", new LogMessage(msg, arg1, arg2));
+    }
+
+    public static void debug(Object msg, Object arg1, Object arg2, Object arg3) {
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("{}", new LogMessage(msg, arg1, arg2, arg3));
     }
 
     public static void debug(Object msg, Object... args) {
-        LOGGER.debug(String.format(msg.toString(), args));
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("{}", message(msg, args));
     }
 
     public static void warning(Object msg, Object... args) {
-        LOGGER.warn(String.format(msg.toString(), args));
+        if (LOGGER.isWarnEnabled()) LOGGER.warn("{}", message(msg, args));
     }
 
     public static void warning(Object msg, Throwable t, Object... args) {
-        LOGGER.warn(String.format(msg.toString(), args), t);
+        if (LOGGER.isWarnEnabled()) LOGGER.warn("{}", message(msg, args), t);
     }
 
     public static void error(Object msg, Object... args) {
-        LOGGER.error(msg.toString(), args);
+        if (LOGGER.isErrorEnabled()) LOGGER.error("{}", message(msg, args));
     }
 
     public static void error(Object msg, Throwable t, Object... args) {
-        LOGGER.error(String.format(msg.toString(), args), t);
+        if (LOGGER.isErrorEnabled()) LOGGER.error("{}", message(msg, args), t);
+    }
+
+    public static boolean isInfo() {
+        return LOGGER.isInfoEnabled();
     }
 
     public static boolean isDebug() {
@@ -65,6 +106,17 @@ public final class Log {
         }
     }
 
+    /**
+     * Stop logger context. Async appenders write out queued messages before stopping
+     */
+    static void shutdown() {
+        ((LoggerContext) LoggerFactory.getILoggerFactory()).stop();
+    }
+
+    private static Object message(Object msg, Object[] args) {
+        return args.length == 0 ? msg : new LogMessage(msg, args);
+    }
+
     private static Logger getRootLogger() {
         return (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
     }
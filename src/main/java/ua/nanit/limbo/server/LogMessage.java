@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.server;
+
+/**
+ * Pattern and arguments of a log message, formatted with {@link String#format} on first
+ * {@link #toString()}. Arguments must be immutable, since they are read by the appender thread
+ */
+final class LogMessage {
+
+    private final Object pattern;
+    private final Object[] args;
+    private String formatted;
+
+    LogMessage(Object pattern, Object... args) {
+        this.pattern = pattern;
+        this.args = args;
+    }
+
+    @Override
+    public String toString() {
+        if (formatted == null) {
+            formatted = String.format(pattern.toString(), args);
+        }
+        return formatted;
+    }
+}
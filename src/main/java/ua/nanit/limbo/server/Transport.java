@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+
+/**
+ * Netty transport types. Native transports are used only if they are available on this system
+ */
+public enum Transport {
+
+    /**
+     * Epoll if available, otherwise NIO. io_uring isn't chosen automatically,
+     * because it's still in incubator and depends on the kernel version
+     */
+    AUTO("auto") {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return resolve().newEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return resolve().getServerChannelClass();
+        }
+
+        @Override
+        public Class<? extends Channel> getChannelClass() {
+            return resolve().getChannelClass();
+        }
+    },
+    IO_URING("io_uring") {
+        @Override
+        public boolean isAvailable() {
+            try {
+                return IOUring.isAvailable();
+            } catch (Throwable t) {
+                // Native library or incubator classes are missing
+                return false;
+            }
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new IOUringEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return IOUringServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> getChannelClass() {
+            return IOUringSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> getReusePortOption() {
+            return IOUringChannelOption.SO_REUSEPORT;
+        }
+    },
+    EPOLL("epoll") {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> getChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public ChannelOption<Boolean> getReusePortOption() {
+            return EpollChannelOption.SO_REUSEPORT;
+        }
+    },
+    NIO("nio") {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> getServerChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> getChannelClass() {
+            return NioSocketChannel.class;
+        }
+    };
+
+    private final String name;
+
+    Transport(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public abstract boolean isAvailable();
+
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    public abstract Class<? extends ServerChannel> getServerChannelClass();
+
+    public abstract Class<? extends Channel> getChannelClass();
+
+    /**
+     * @return SO_REUSEPORT option of the native transport or null if transport doesn't support it
+     */
+    public ChannelOption<Boolean> getReusePortOption() {
+        return null;
+    }
+
+    /**
+     * Get transport which will be actually used. Unavailable transport falls back to {@link #AUTO}
+     * @return Available transport other than {@link #AUTO}
+     */
+    public Transport resolve() {
+        if (this == AUTO) {
+            return EPOLL.isAvailable() ? EPOLL : NIO;
+        }
+
+        return isAvailable() ? this : AUTO.resolve();
+    }
+
+    /**
+     * @param name Name of transport, case-insensitive
+     * @return Transport with this name
+     * @throws IllegalArgumentException if there is no such transport
+     */
+    public static Transport of(String name) {
+        for (Transport transport : values()) {
+            if (transport.name.equalsIgnoreCase(name)) {
+                return transport;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown transport " + name);
+    }
+}
@@ -0,0 +1,28 @@
+package ua.nanit.limbo.server.commands;
+
+import ua.nanit.limbo.server.Command;
+import ua.nanit.limbo.server.LimboServer;
+import ua.nanit.limbo.server.Log;
+
+public class CmdReload implements Command {
+
+    private final LimboServer server;
+
+    public CmdReload(LimboServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void execute() {
+        Log.info("Reloading settings...");
+        server.reload().exceptionally(e -> {
+            Log.error("Cannot reload settings", e.getCause());
+            return null;
+        });
+    }
+
+    @Override
+    public String description() {
+        return "Reload settings without restart";
+    }
+}
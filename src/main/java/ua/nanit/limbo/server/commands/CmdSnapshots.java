@@ -0,0 +1,45 @@
+package ua.nanit.limbo.server.commands;
+
+import ua.nanit.limbo.connection.PacketSnapshots;
+import ua.nanit.limbo.protocol.PacketSnapshot;
+import ua.nanit.limbo.protocol.SnapshotArena;
+import ua.nanit.limbo.server.Command;
+import ua.nanit.limbo.server.LimboServer;
+import ua.nanit.limbo.server.Log;
+
+public class CmdSnapshots implements Command {
+
+    private final LimboServer server;
+
+    public CmdSnapshots(LimboServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void execute() {
+        PacketSnapshots snapshots = server.getSnapshots();
+        Log.info("Packet snapshots:");
+
+        for (PacketSnapshot snapshot : snapshots.getAll()) {
+            long total = snapshot.getTotalBytes();
+            long unique = snapshot.getUniqueBytes();
+            Log.info("%s: %d bytes total, %d bytes unique (x%.2f)", snapshot, total, unique, ratio(total, unique));
+        }
+
+        SnapshotArena arena = snapshots.getArena();
+        long requested = arena.getRequestedBytes();
+        long unique = arena.getUniqueBytes();
+
+        Log.info("Arena: %d entries, %d bytes requested, %d bytes unique (x%.2f), %d bytes allocated off-heap",
+                arena.getEntriesCount(), requested, unique, ratio(requested, unique), arena.getAllocatedBytes());
+    }
+
+    @Override
+    public String description() {
+        return "Display packet snapshots memory and dedupe stats";
+    }
+
+    private static double ratio(long total, long unique) {
+        return unique > 0 ? (double) total / unique : 1.0;
+    }
+}
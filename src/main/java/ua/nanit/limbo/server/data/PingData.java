@@ -29,6 +29,8 @@ public class PingData {
     private String version;
     private String description;
     private int protocol;
+    private long cacheTime;
+    private int onlineGranularity;
 
     public String getVersion() {
         return version;
@@ -54,6 +56,22 @@ public class PingData {
         this.protocol = protocol;
     }
 
+    public long getCacheTime() {
+        return cacheTime;
+    }
+
+    public void setCacheTime(long cacheTime) {
+        this.cacheTime = cacheTime;
+    }
+
+    public int getOnlineGranularity() {
+        return onlineGranularity;
+    }
+
+    public void setOnlineGranularity(int onlineGranularity) {
+        this.onlineGranularity = onlineGranularity;
+    }
+
     public static class Serializer implements TypeSerializer<PingData> {
 
         @Override
@@ -62,6 +80,8 @@ public class PingData {
             pingData.setDescription(Colors.of(node.node("description").getString("")));
             pingData.setVersion(Colors.of(node.node("version").getString("")));
             pingData.setProtocol(node.node("protocol").getInt(-1));
+            pingData.setCacheTime(node.node("cacheTime").getLong(5000));
+            pingData.setOnlineGranularity(Math.max(1, node.node("onlineGranularity").getInt(5)));
             return pingData;
         }
 
@@ -17,15 +17,16 @@
 
 package ua.nanit.limbo.world;
 
+import net.kyori.adventure.nbt.BinaryTagIO;
 import net.kyori.adventure.nbt.CompoundBinaryTag;
 import net.kyori.adventure.nbt.ListBinaryTag;
-import net.kyori.adventure.nbt.TagStringIO;
 import ua.nanit.limbo.server.LimboServer;
 import ua.nanit.limbo.server.Log;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public final class DimensionRegistry {
 
@@ -98,15 +99,25 @@ public final class DimensionRegistry {
     }
 
     public void load(String def) throws IOException {
+        // Codecs are independent, so they are parsed in parallel
         // On 1.16-1.16.1 different codec format
-        oldCodec = readCodecFile("/dimension/codec_old.snbt");
-        codec_1_16 = readCodecFile("/dimension/codec_1_16.snbt");
-        codec_1_18_2 = readCodecFile("/dimension/codec_1_18_2.snbt");
-        codec_1_19 = readCodecFile("/dimension/codec_1_19.snbt");
-        codec_1_19_1 = readCodecFile("/dimension/codec_1_19_1.snbt");
-        codec_1_19_4 = readCodecFile("/dimension/codec_1_19_4.snbt");
-        codec_1_20 = readCodecFile("/dimension/codec_1_20.snbt");
-        codec_1_21 = readCodecFile("/dimension/codec_1_21.snbt");
+        ForkJoinTask<CompoundBinaryTag> oldCodecTask = readCodecFileAsync("/dimension/codec_old.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_16Task = readCodecFileAsync("/dimension/codec_1_16.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_18_2Task = readCodecFileAsync("/dimension/codec_1_18_2.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_19Task = readCodecFileAsync("/dimension/codec_1_19.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_19_1Task = readCodecFileAsync("/dimension/codec_1_19_1.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_19_4Task = readCodecFileAsync("/dimension/codec_1_19_4.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_20Task = readCodecFileAsync("/dimension/codec_1_20.nbt");
+        ForkJoinTask<CompoundBinaryTag> codec_1_21Task = readCodecFileAsync("/dimension/codec_1_21.nbt");
+
+        oldCodec = await(oldCodecTask);
+        codec_1_16 = await(codec_1_16Task);
+        codec_1_18_2 = await(codec_1_18_2Task);
+        codec_1_19 = await(codec_1_19Task);
+        codec_1_19_1 = await(codec_1_19_1Task);
+        codec_1_19_4 = await(codec_1_19_4Task);
+        codec_1_20 = await(codec_1_20Task);
+        codec_1_21 = await(codec_1_21Task);
 
         defaultDimension_1_16 = getDefaultDimension(def, codec_1_16);
         defaultDimension_1_18_2 = getDefaultDimension(def, codec_1_18_2);
@@ -149,18 +160,33 @@ public final class DimensionRegistry {
         }
     }
 
+    private ForkJoinTask<CompoundBinaryTag> readCodecFileAsync(String resPath) {
+        return ForkJoinPool.commonPool().submit(() -> readCodecFile(resPath));
+    }
+
+    private static CompoundBinaryTag await(ForkJoinTask<CompoundBinaryTag> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading dimension registry");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException("Cannot read dimension registry", e.getCause());
+        }
+    }
+
     private CompoundBinaryTag readCodecFile(String resPath) throws IOException {
         InputStream in = server.getClass().getResourceAsStream(resPath);
 
         if (in == null)
             throw new FileNotFoundException("Cannot find dimension registry file");
 
-        return TagStringIO.get().asCompound(streamToString(in));
-    }
-
-    private String streamToString(InputStream in) throws IOException {
-        try (BufferedReader bufReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-            return bufReader.lines().collect(Collectors.joining("\n"));
+        // Codecs are converted from SNBT to binary NBT at build time
+        try (InputStream stream = new BufferedInputStream(in)) {
+            return BinaryTagIO.unlimitedReader().read(stream);
         }
     }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    // Keys with different fingerprints, which fall into the same two slots of a 32 slots table
+    private static final long FIRST = 0x0001_0000_0000_0005L;
+    private static final long SECOND = 0x0002_0000_0000_0005L;
+    private static final long THIRD = 0x0003_0000_0000_0005L;
+
+    @Test
+    void collidingKeyDoesNotGetFreshBurst() {
+        AdmissionControl.BucketTable table = new AdmissionControl.BucketTable(16, 0, 2);
+
+        for (long key : new long[] {FIRST, SECOND}) {
+            assertTrue(table.tryAcquire(key));
+            assertTrue(table.tryAcquire(key));
+            assertFalse(table.tryAcquire(key));
+        }
+
+        assertFalse(table.tryAcquire(THIRD), "Colliding key took over a drained bucket with full tokens");
+    }
+
+    @Test
+    void releaseReturnsToken() {
+        AdmissionControl.BucketTable table = new AdmissionControl.BucketTable(16, 0, 1);
+
+        assertTrue(table.tryAcquire(FIRST));
+        assertFalse(table.tryAcquire(FIRST));
+
+        table.release(FIRST);
+
+        assertTrue(table.tryAcquire(FIRST));
+        assertFalse(table.tryAcquire(FIRST));
+    }
+}
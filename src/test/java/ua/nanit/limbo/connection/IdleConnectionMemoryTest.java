@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openjdk.jol.info.GraphLayout;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.protocol.packets.configuration.PacketFinishConfiguration;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginAcknowledged;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Memory held by idle players in PLAY state. Stateless handlers must be shared by all pipelines,
+ * and the heap retained by one more connection must stay within the budget. Retained size is
+ * measured with JOL as the growth of the object graph reachable from the server and all channels.
+ * Growth of the same number of channels with only the timeout handler is subtracted. Every embedded
+ * channel has its own event loop and so its own timeout wheel, which real connections share.
+ * The result counts pipeline contexts, handler state and server-wide bookkeeping
+ */
+class IdleConnectionMemoryTest {
+
+    private static final int CONNECTIONS = 64;
+    // Retained bytes of one idle connection, without the channel and its timeout wheel
+    private static final long BUDGET_BYTES = 4096;
+
+    private static LimboServer server;
+
+    @BeforeAll
+    static void loadServer(@TempDir Path root) throws Exception {
+        server = new LimboServer();
+        server.load(root);
+    }
+
+    @Test
+    void idleConnectionsStayWithinBudget() {
+        for (Version version : new Version[] {Version.V1_8, Version.V1_16_4, Version.V1_21}) {
+            List<EmbeddedChannel> channels = new ArrayList<>();
+            List<EmbeddedChannel> bare = new ArrayList<>();
+
+            try {
+                for (int i = 0; i < CONNECTIONS; i++) {
+                    channels.add(login(version, "Player" + i));
+                    bare.add(new EmbeddedChannel(server.getTimeoutScheduler().getHandler()));
+                }
+
+                long joined = footprint(channels);
+                long bareBefore = footprint(bare);
+
+                for (int i = CONNECTIONS; i < CONNECTIONS * 2; i++) {
+                    channels.add(login(version, "Player" + i));
+                    bare.add(new EmbeddedChannel(server.getTimeoutScheduler().getHandler()));
+                }
+
+                for (EmbeddedChannel channel : channels) {
+                    ClientConnection connection = channel.pipeline().get(ClientConnection.class);
+                    assertNotNull(connection, "Connection handler is missing for " + version);
+                    assertTrue(connection.isJoined(), "Player didn't join on " + version);
+                }
+
+                assertEquals(CONNECTIONS * 2, server.getConnections().getCount());
+                assertSame(channels.get(0).pipeline().get("frame_encoder"), channels.get(1).pipeline().get("frame_encoder"));
+                assertSame(channels.get(0).pipeline().get("timeout"), channels.get(1).pipeline().get("timeout"));
+
+                long connectionBytes = (footprint(channels) - joined) / CONNECTIONS;
+                long channelBytes = (footprint(bare) - bareBefore) / CONNECTIONS;
+                long retained = connectionBytes - channelBytes;
+
+                assertTrue(retained <= BUDGET_BYTES, () -> String.format("Idle %s connection retains %d bytes, budget is %d bytes",
+                        version, retained, BUDGET_BYTES));
+            } finally {
+                for (EmbeddedChannel channel : channels) {
+                    channel.finishAndReleaseAll();
+                }
+                for (EmbeddedChannel channel : bare) {
+                    channel.finishAndReleaseAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Total size of objects reachable from the server and the channels
+     */
+    private static long footprint(List<EmbeddedChannel> channels) {
+        Object[] roots = new Object[channels.size() + 1];
+        roots[0] = server;
+
+        for (int i = 0; i < channels.size(); i++) {
+            roots[i + 1] = channels.get(i);
+        }
+
+        return GraphLayout.parseInstance(roots).totalSize();
+    }
+
+    private static EmbeddedChannel login(Version version, String username) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ClientChannelInitializer(server));
+        ByteBuf inbound = Unpooled.buffer();
+
+        append(inbound, frame(0x00, msg -> {
+            msg.writeVarInt(version.getProtocolNumber());
+            msg.writeString("localhost");
+            msg.writeShort(25565);
+            msg.writeVarInt(2); // Login state
+        }));
+
+        append(inbound, frame(0x00, msg -> msg.writeString(username)));
+
+        if (version.moreOrEqual(Version.V1_20_2)) {
+            append(inbound, frame(State.LOGIN.serverBound.getRegistry(version)
+                    .getPacketId(PacketLoginAcknowledged.class), msg -> {}));
+            append(inbound, frame(State.CONFIGURATION.serverBound.getRegistry(version)
+                    .getPacketId(PacketFinishConfiguration.class), msg -> {}));
+        }
+
+        channel.writeInbound(inbound);
+        channel.runPendingTasks();
+
+        ByteBuf buf;
+
+        while ((buf = channel.readOutbound()) != null) {
+            buf.release();
+        }
+
+        return channel;
+    }
+
+    private static ByteBuf frame(int packetId, Consumer<ByteMessage> body) {
+        ByteMessage packet = ByteMessage.create();
+        packet.writeVarInt(packetId);
+        body.accept(packet);
+
+        ByteMessage frame = new ByteMessage(Unpooled.buffer(packet.readableBytes() + 5));
+        frame.writeVarInt(packet.readableBytes());
+        frame.writeBytes(packet);
+        packet.release();
+
+        return frame;
+    }
+
+    private static void append(ByteBuf inbound, ByteBuf frame) {
+        inbound.writeBytes(frame);
+        frame.release();
+    }
+}
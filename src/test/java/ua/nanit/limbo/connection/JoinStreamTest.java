@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ua.nanit.limbo.protocol.ByteMessage;
+import ua.nanit.limbo.protocol.packets.configuration.PacketFinishConfiguration;
+import ua.nanit.limbo.protocol.packets.login.PacketLoginAcknowledged;
+import ua.nanit.limbo.protocol.packets.play.PacketJoinGame;
+import ua.nanit.limbo.protocol.registry.State;
+import ua.nanit.limbo.protocol.registry.Version;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Join data streamed while the client's queue is full must keep its order,
+ * even if the client finishes configuration before it has received it
+ */
+class JoinStreamTest {
+
+    // Writability bit toggled by the test to simulate a full client queue
+    private static final int BLOCKED = 1;
+
+    private static LimboServer server;
+
+    @BeforeAll
+    static void loadServer(@TempDir Path root) throws Exception {
+        server = new LimboServer();
+        server.load(root);
+    }
+
+    @Test
+    void configurationIsWrittenBeforePlay() {
+        Version version = Version.V1_21;
+        EmbeddedChannel channel = new EmbeddedChannel(new ClientChannelInitializer(server));
+
+        try {
+            ByteBuf login = Unpooled.buffer();
+            append(login, frame(0x00, msg -> {
+                msg.writeVarInt(version.getProtocolNumber());
+                msg.writeString("localhost");
+                msg.writeShort(25565);
+                msg.writeVarInt(2); // Login state
+            }));
+            append(login, frame(0x00, msg -> msg.writeString("Player")));
+
+            channel.writeInbound(login);
+            channel.runPendingTasks();
+            readPacketIds(channel);
+
+            channel.unsafe().outboundBuffer().setUserDefinedWritability(BLOCKED, false);
+            assertFalse(channel.isWritable());
+
+            ByteBuf acknowledge = Unpooled.buffer();
+            append(acknowledge, frame(State.LOGIN.serverBound.getRegistry(version)
+                    .getPacketId(PacketLoginAcknowledged.class), msg -> {}));
+            append(acknowledge, frame(State.CONFIGURATION.serverBound.getRegistry(version)
+                    .getPacketId(PacketFinishConfiguration.class), msg -> {}));
+
+            channel.writeInbound(acknowledge);
+            channel.runPendingTasks();
+
+            channel.unsafe().outboundBuffer().setUserDefinedWritability(BLOCKED, true);
+            channel.runPendingTasks();
+
+            List<Integer> ids = readPacketIds(channel);
+            int finishConfiguration = ids.indexOf(State.CONFIGURATION.clientBound.getRegistry(version)
+                    .getPacketId(PacketFinishConfiguration.class));
+            int joinGame = ids.lastIndexOf(State.PLAY.clientBound.getRegistry(version)
+                    .getPacketId(PacketJoinGame.class));
+
+            assertNotEquals(-1, finishConfiguration, "Finish configuration wasn't sent");
+            assertNotEquals(-1, joinGame, "Join game wasn't sent");
+            assertTrue(finishConfiguration < joinGame, "Play packets were sent before configuration finished");
+            assertTrue(channel.pipeline().get(ClientConnection.class).isJoined());
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * Ids of all packets written to the channel, in order. Written buffers may hold several frames
+     */
+    private static List<Integer> readPacketIds(EmbeddedChannel channel) {
+        List<Integer> ids = new ArrayList<>();
+        ByteBuf buf;
+
+        while ((buf = channel.readOutbound()) != null) {
+            ByteMessage msg = new ByteMessage(buf);
+
+            while (msg.isReadable()) {
+                int length = msg.readVarInt();
+                int end = msg.readerIndex() + length;
+                ids.add(msg.readVarInt());
+                msg.readerIndex(end);
+            }
+
+            buf.release();
+        }
+
+        return ids;
+    }
+
+    private static ByteBuf frame(int packetId, Consumer<ByteMessage> body) {
+        ByteMessage packet = ByteMessage.create();
+        packet.writeVarInt(packetId);
+        body.accept(packet);
+
+        ByteMessage frame = new ByteMessage(Unpooled.buffer(packet.readableBytes() + 5));
+        frame.writeVarInt(packet.readableBytes());
+        frame.writeBytes(packet);
+        packet.release();
+
+        return frame;
+    }
+
+    private static void append(ByteBuf inbound, ByteBuf frame) {
+        inbound.writeBytes(frame);
+        frame.release();
+    }
+}
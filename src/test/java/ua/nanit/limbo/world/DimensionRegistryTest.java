@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Nan1t
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ua.nanit.limbo.world;
+
+import net.kyori.adventure.nbt.CompoundBinaryTag;
+import net.kyori.adventure.nbt.TagStringIO;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import ua.nanit.limbo.server.LimboServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Binary codecs are generated from the SNBT sources at build time.
+ * The registry must load exactly the same tags as the sources describe
+ */
+class DimensionRegistryTest {
+
+    private static final Path SOURCES = Paths.get("src", "main", "snbt", "dimension");
+
+    private static DimensionRegistry registry;
+
+    @BeforeAll
+    static void loadRegistry() throws IOException {
+        registry = new DimensionRegistry(new LimboServer());
+        registry.load("the_end");
+    }
+
+    @Test
+    void codecsMatchSources() throws IOException {
+        assertCodec("codec_old", registry.getOldCodec());
+        assertCodec("codec_1_16", registry.getCodec_1_16());
+        assertCodec("codec_1_18_2", registry.getCodec_1_18_2());
+        assertCodec("codec_1_19", registry.getCodec_1_19());
+        assertCodec("codec_1_19_1", registry.getCodec_1_19_1());
+        assertCodec("codec_1_19_4", registry.getCodec_1_19_4());
+        assertCodec("codec_1_20", registry.getCodec_1_20());
+        assertCodec("codec_1_21", registry.getCodec_1_21());
+    }
+
+    @Test
+    void defaultDimensionIsResolved() {
+        assertEquals("minecraft:the_end", registry.getDefaultDimension_1_16().getName());
+        assertEquals("minecraft:the_end", registry.getDimension_1_21().getName());
+    }
+
+    private static void assertCodec(String name, CompoundBinaryTag loaded) throws IOException {
+        String source = new String(Files.readAllBytes(SOURCES.resolve(name + ".snbt")), StandardCharsets.UTF_8);
+
+        assertNotNull(loaded, name + " wasn't loaded");
+        assertEquals(TagStringIO.get().asCompound(source), loaded, name + " doesn't match its SNBT source");
+    }
+}